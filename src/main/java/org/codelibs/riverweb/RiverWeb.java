@@ -1,14 +1,22 @@
 package org.codelibs.riverweb;
 
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.IntConsumer;
 import java.util.stream.Stream;
@@ -36,18 +44,24 @@ import org.codelibs.fess.crawler.client.http.ntlm.JcifsEngine;
 import org.codelibs.fess.crawler.service.impl.EsDataService;
 import org.codelibs.fess.crawler.service.impl.EsUrlFilterService;
 import org.codelibs.fess.crawler.service.impl.EsUrlQueueService;
+import org.codelibs.riverweb.app.service.QueueService;
+import org.codelibs.riverweb.app.service.QueueService.QueueEntry;
 import org.codelibs.riverweb.config.RiverConfig;
 import org.codelibs.riverweb.config.RiverConfigManager;
+import org.codelibs.riverweb.crawler.ChildUrlFilter;
+import org.codelibs.riverweb.crawler.EmbeddedUrlQueue;
+import org.codelibs.riverweb.crawler.FetchScheduler;
+import org.codelibs.riverweb.crawler.LastModifiedCache;
+import org.codelibs.riverweb.crawler.UrlBloomFilter;
+import org.codelibs.riverweb.indexer.BulkIndexer;
 import org.codelibs.riverweb.interval.WebRiverIntervalController;
+import org.codelibs.riverweb.pipeline.Stage;
 import org.codelibs.riverweb.util.ConfigProperties;
 import org.codelibs.riverweb.util.ScriptUtils;
 import org.codelibs.riverweb.util.SettingsUtils;
 import org.elasticsearch.action.get.GetResponse;
-import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.index.IndexNotFoundException;
 import org.elasticsearch.index.engine.DocumentAlreadyExistsException;
-import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.index.query.functionscore.ScoreFunctionBuilders;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.ParserProperties;
@@ -74,6 +88,15 @@ public class RiverWeb {
     @Option(name = "--interval")
     protected long interval = 1000;
 
+    @Option(name = "--max-interval")
+    protected long maxInterval = 60000; // 1min
+
+    @Option(name = "--queue-claim-size")
+    protected int queueClaimSize = 1;
+
+    @Option(name = "--queue-lease")
+    protected long queueLease = 60000; // 1min
+
     @Option(name = "--config-id")
     protected String configId;
 
@@ -95,6 +118,9 @@ public class RiverWeb {
     @Option(name = "--queue-query")
     protected String queueQuery;
 
+    @Option(name = "--embedded-queue")
+    protected boolean embeddedQueue;
+
     @Resource
     protected org.codelibs.fess.crawler.client.EsClient esClient;
 
@@ -104,6 +130,9 @@ public class RiverWeb {
     @Resource
     protected RiverConfigManager riverConfigManager;
 
+    @Resource
+    protected FetchScheduler fetchScheduler;
+
     @Resource
     protected String defaultUserAgent;
 
@@ -157,56 +186,85 @@ public class RiverWeb {
         esClient.setAddresses(config.getElasticsearchHosts(esHosts));
         esClient.connect();
 
+        fetchScheduler.setMaxSlots(config.getFetchSlots());
+        fetchScheduler.setMaxHostSlots(config.getFetchHostSlots());
+
         if (StringUtil.isNotBlank(configId)) {
             return crawl(SingletonLaContainer.getComponent(Crawler.class), configId, sessionId);
         } else {
             final String configIndex = config.getConfigIndex();
             final String queueType = config.getQueueType();
+            final QueueService queueService = SingletonLaContainer.getComponent(QueueService.class);
+            queueService.setLeaseMillis(queueLease);
+            final String processName = ManagementFactory.getRuntimeMXBean().getName();
+            // renew leases of entries being crawled
+            final Set<QueueEntry> claimedSet = ConcurrentHashMap.newKeySet();
+            final ScheduledExecutorService leaseRenewer = Executors.newSingleThreadScheduledExecutor();
+            final long renewInterval = Math.max(queueLease / 3, 1000L);
+            leaseRenewer.scheduleWithFixedDelay(() -> claimedSet.forEach(queueService::renew), renewInterval, renewInterval,
+                    TimeUnit.MILLISECONDS);
             final ExecutorService threadPool = Executors.newFixedThreadPool(numThreads);
             final Future<?>[] results = new Future[numThreads];
             for (int i = 0; i < numThreads; i++) {
                 final int threadId = i + 1;
                 results[i] = threadPool.submit(() -> {
+                    final String owner = processName + "#" + threadId;
                     AtomicLong lastProcessed = new AtomicLong(System.currentTimeMillis());
+                    long waitTime = interval;
                     while (SingletonLaContainerFactory.hasContainer()
                             && (queueTimeout <= 0 || lastProcessed.get() + queueTimeout > System.currentTimeMillis())) {
                         logger.debug("Checking queue: {}/{}", configIndex, queueType);
+                        boolean processed = false;
                         try {
-                            final SearchRequestBuilder builder = esClient.prepareSearch(configIndex).setTypes(queueType);
-                            if (StringUtil.isNotBlank(queueQuery)) {
-                                builder.setQuery(queueQuery);
-                            } else {
-                                builder.setQuery(
-                                        QueryBuilders.functionScoreQuery().add(ScoreFunctionBuilders.randomFunction(System.nanoTime())));
-                            }
-                            builder.setSize(config.getQueueParsingSize()).execute().actionGet().getHits().forEach(hit -> {
-                                if (esClient.prepareDelete(hit.getIndex(), hit.getType(), hit.getId()).execute().actionGet().isFound()) {
-                                    Map<String, Object> source = hit.getSource();
-                                    final Object configId = source.get("config_id");
-                                    final String sessionId = (String) source.get("session_id");
-                                    if (configId instanceof String) {
-                                        print("Config %s is started with Session %s.", configId, sessionId);
+                            final List<QueueEntry> entryList = queueService.claim(queueQuery, queueClaimSize, owner);
+                            claimedSet.addAll(entryList);
+                            try {
+                                for (final QueueEntry entry : entryList) {
+                                    processed = true;
+                                    try {
+                                        Map<String, Object> source = entry.getSource();
+                                        final Object configId = source.get("config_id");
+                                        final String sessionId = (String) source.get("session_id");
+                                        if (configId instanceof String) {
+                                            print("Config %s is started with Session %s.", configId, sessionId);
+                                            try {
+                                                crawl(SingletonLaContainer.getComponent(Crawler.class), configId.toString(), sessionId);
+                                            } finally {
+                                                print("Config %s is finished.", configId);
+                                                lastProcessed.set(System.currentTimeMillis());
+                                            }
+                                        }
+                                    } finally {
+                                        claimedSet.remove(entry);
                                         try {
-                                            crawl(SingletonLaContainer.getComponent(Crawler.class), configId.toString(), sessionId);
-                                        } finally {
-                                            print("Config %s is finished.", configId);
-                                            lastProcessed.set(System.currentTimeMillis());
+                                            if (!queueService.complete(entry) && logger.isDebugEnabled()) {
+                                                logger.debug("No data in queue: " + entry);
+                                            }
+                                        } catch (Exception e) {
+                                            logger.warn("Failed to delete " + entry + " from queue.", e);
                                         }
                                     }
-                                } else if (logger.isDebugEnabled()) {
-                                    logger.debug("No data in queue: " + hit.getIndex() + "/" + hit.getType() + "/" + hit.getId());
                                 }
-                            });
+                            } finally {
+                                // unprocessed entries are claimed again after their leases expire
+                                claimedSet.removeAll(entryList);
+                            }
                         } catch (IndexNotFoundException e) {
                             logger.debug("Index is not found.", e);
                         } catch (Exception e) {
                             logger.warn("Failed to process a queue.", e);
                         }
+                        if (processed) {
+                            // check the queue again without waiting
+                            waitTime = interval;
+                            continue;
+                        }
                         try {
-                            Thread.sleep(interval);
+                            Thread.sleep(waitTime);
                         } catch (InterruptedException e) {
                             // ignore
                         }
+                        waitTime = Math.min(waitTime * 2, Math.max(maxInterval, interval));
                     }
                     print("Thread %d is finished.", threadId);
                 });
@@ -219,10 +277,29 @@ public class RiverWeb {
                 }
             });
             threadPool.shutdown();
+            leaseRenewer.shutdownNow();
             return 0;
         }
     }
 
+    protected UrlBloomFilter createUrlBloomFilter(final Map<String, Object> crawlSettings, final Object bloomFilterSettings,
+            final boolean newSession, final String sessionId) {
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> settings = bloomFilterSettings instanceof Map ? (Map<String, Object>) bloomFilterSettings : null;
+        final String pathValue = SettingsUtils.get(settings, "path", null);
+        final Path path = pathValue != null ? Paths.get(pathValue) : null;
+        if (!newSession && (path == null || !Files.exists(path))) {
+            // urls queued before this run are unknown
+            logger.warn("Bloom filter is disabled because " + sessionId + " is resumed without a saved filter.");
+            return null;
+        }
+        final int maxAccessCount = SettingsUtils.get(crawlSettings, "max_access_count", 100);
+        final int expectedInsertions = SettingsUtils.get(settings, "expected_insertions",
+                maxAccessCount > 0 ? (int) Math.min(Integer.MAX_VALUE, Math.max(10000L, maxAccessCount * 10L)) : 1000000);
+        final double fpp = SettingsUtils.get(settings, "fpp", 0.01d);
+        return UrlBloomFilter.create(path, expectedInsertions, fpp);
+    }
+
     private int crawl(Crawler crawler, String configId, String sessionId) {
         // Load config data
         final String configIndex = config.getConfigIndex();
@@ -235,7 +312,8 @@ public class RiverWeb {
 
         final Map<String, Object> crawlSettings = response.getSource();
 
-        if (StringUtil.isBlank(sessionId)) {
+        final boolean newSession = StringUtil.isBlank(sessionId);
+        if (newSession) {
             sessionId = UUID.randomUUID().toString();
         }
 
@@ -382,6 +460,28 @@ public class RiverWeb {
                 paramMap.put(HcHttpClient.REQUERT_HEADERS_PROPERTY, requestHeaderList.toArray(new RequestHeader[requestHeaderList.size()]));
             }
 
+            // embedded url queue
+            // "embedded_queue":true or {"max_memory_size":10000,"spill_dir":"..."}
+            final Object embeddedQueueSettings = SettingsUtils.get(crawlSettings, "embedded_queue", embeddedQueue ? Boolean.TRUE : null);
+            if (Boolean.TRUE.equals(embeddedQueueSettings) || embeddedQueueSettings instanceof Map) {
+                @SuppressWarnings("unchecked")
+                final Map<String, Object> queueSettings =
+                        embeddedQueueSettings instanceof Map ? (Map<String, Object>) embeddedQueueSettings : null;
+                final String spillDir = SettingsUtils.get(queueSettings, "spill_dir", null);
+                final EmbeddedUrlQueue embeddedUrlQueue = new EmbeddedUrlQueue(SettingsUtils.get(queueSettings, "max_memory_size", 10000),
+                        spillDir != null ? Paths.get(spillDir) : null);
+                // urls left in Elasticsearch by a previous run are polled when the embedded queue is empty
+                embeddedUrlQueue.setIndexQueueEnabled(!newSession);
+                riverConfig.setEmbeddedUrlQueue(embeddedUrlQueue);
+            }
+
+            // bloom filter of queued urls
+            // "bloom_filter":true or {"expected_insertions":100000,"fpp":0.01,"path":"..."}
+            final Object bloomFilterSettings = SettingsUtils.get(crawlSettings, "bloom_filter", null);
+            if (Boolean.TRUE.equals(bloomFilterSettings) || bloomFilterSettings instanceof Map) {
+                riverConfig.setUrlBloomFilter(createUrlBloomFilter(crawlSettings, bloomFilterSettings, newSession, sessionId));
+            }
+
             // url
             @SuppressWarnings("unchecked")
             final List<String> urlList = (List<String>) crawlSettings.get("urls");
@@ -437,14 +537,67 @@ public class RiverWeb {
             final long interval = SettingsUtils.get(crawlSettings, "interval", 1000L);
             final WebRiverIntervalController intervalController = (WebRiverIntervalController) crawler.getIntervalController();
             intervalController.setDelayMillisForWaitingNewUrl(interval);
+            // per-host rate control
+            // "rate_control":true or {"initial_rate":1,"min_rate":0.1,"max_rate":10,"increase":0.5,"decrease":0.5,...}
+            final Object rateControlSettings = SettingsUtils.get(crawlSettings, "rate_control", null);
+            if (Boolean.TRUE.equals(rateControlSettings) || rateControlSettings instanceof Map) {
+                @SuppressWarnings("unchecked")
+                final Map<String, Object> rateSettings =
+                        rateControlSettings instanceof Map ? (Map<String, Object>) rateControlSettings : null;
+                intervalController.setRateControlSettings(rateSettings);
+            }
+            riverConfig.setIntervalController(intervalController);
+            // fetch slots shared with other sessions
+            // "fetch":{"max_slots":5,"weight":1}
+            final Map<String, Object> fetchSettings = SettingsUtils.get(crawlSettings, "fetch", null);
+            fetchScheduler.register(sessionId, SettingsUtils.get(fetchSettings, "max_slots", 0),
+                    SettingsUtils.get(fetchSettings, "weight", 1));
 
             // river params
             riverConfig.setIndex(SettingsUtils.get(crawlSettings, "index", "web"));
             riverConfig.setType(SettingsUtils.get(crawlSettings, "type", configId));
             riverConfig.setOverwrite(SettingsUtils.get(crawlSettings, "overwrite", Boolean.FALSE));
             riverConfig.setIncremental(SettingsUtils.get(crawlSettings, "incremental", Boolean.FALSE));
+            riverConfig.setIdStrategy(SettingsUtils.get(crawlSettings, "id_strategy", RiverConfig.ID_STRATEGY_AUTO));
             riverConfig.setScriptSettings(scriptSettings);
 
+            // bulk indexing
+            // "bulk":true or {"actions":1000,"size":"5mb","flush_interval":"5s","concurrent_requests":1}
+            final Object bulkSettings = SettingsUtils.get(crawlSettings, "bulk", null);
+            if (Boolean.TRUE.equals(bulkSettings) || bulkSettings instanceof Map) {
+                @SuppressWarnings("unchecked")
+                final Map<String, Object> settings = bulkSettings instanceof Map ? (Map<String, Object>) bulkSettings : null;
+                riverConfig.setBulkIndexer(new BulkIndexer(esClient, sessionId, settings));
+            }
+
+            // pipeline stages
+            // "pipeline":true or {"extract":{"threads":4,"queue_size":100},"index":{"threads":2,"queue_size":1000}}
+            final Object pipelineSettings = SettingsUtils.get(crawlSettings, "pipeline", null);
+            if (Boolean.TRUE.equals(pipelineSettings) || pipelineSettings instanceof Map) {
+                @SuppressWarnings("unchecked")
+                final Map<String, Object> stageSettings = pipelineSettings instanceof Map ? (Map<String, Object>) pipelineSettings : null;
+                final int numOfProcessors = Runtime.getRuntime().availableProcessors();
+                riverConfig.setExtractStage(new Stage("extract", SettingsUtils.get(stageSettings, "extract", null), numOfProcessors, 100));
+                riverConfig.setIndexStage(new Stage("index", SettingsUtils.get(stageSettings, "index", null), 2, 1000));
+            }
+
+            // child url filter
+            // "child_url_filter":true or {"tracking_params":["utm_*","fbclid",...]}
+            final Object childUrlFilterSettings = SettingsUtils.get(crawlSettings, "child_url_filter", null);
+            if (Boolean.TRUE.equals(childUrlFilterSettings) || childUrlFilterSettings instanceof Map) {
+                @SuppressWarnings("unchecked")
+                final Map<String, Object> filterSettings =
+                        childUrlFilterSettings instanceof Map ? (Map<String, Object>) childUrlFilterSettings : null;
+                riverConfig.setChildUrlFilter(new ChildUrlFilter(includeFilterList, excludeFilterList, filterSettings));
+            }
+
+            // lastModified of indexed documents for incremental crawling, and ids to overwrite by url-based ids
+            if (riverConfig.isIncremental() || (riverConfig.isOverwrite() && riverConfig.isUrlBasedId())) {
+                final LastModifiedCache lastModifiedCache = new LastModifiedCache(esClient, riverConfig.getIndex(), riverConfig.getType());
+                lastModifiedCache.load();
+                riverConfig.setLastModifiedCache(lastModifiedCache);
+            }
+
             // crawl config
             for (final Map<String, Object> targetMap : targetList) {
                 @SuppressWarnings("unchecked")
@@ -470,6 +623,41 @@ public class RiverWeb {
             crawler.stop();
 
         } finally {
+            fetchScheduler.unregister(sessionId);
+
+            final WebRiverIntervalController intervalController = riverConfig.getIntervalController();
+            if (intervalController != null && intervalController.isRateControlEnabled() && logger.isInfoEnabled()) {
+                logger.info("Request rates of hosts in " + sessionId + ": " + intervalController.getHostRates());
+            }
+
+            // remove spill files
+            final EmbeddedUrlQueue embeddedUrlQueue = riverConfig.getEmbeddedUrlQueue();
+            if (embeddedUrlQueue != null) {
+                embeddedUrlQueue.close();
+            }
+
+            // save queued urls for a resumed session
+            final UrlBloomFilter urlBloomFilter = riverConfig.getUrlBloomFilter();
+            if (urlBloomFilter != null) {
+                urlBloomFilter.save();
+            }
+
+            // wait for extracted and indexed documents
+            final Stage extractStage = riverConfig.getExtractStage();
+            if (extractStage != null) {
+                extractStage.close();
+            }
+            final Stage indexStage = riverConfig.getIndexStage();
+            if (indexStage != null) {
+                indexStage.close();
+            }
+
+            // flush buffered documents
+            final BulkIndexer bulkIndexer = riverConfig.getBulkIndexer();
+            if (bulkIndexer != null) {
+                bulkIndexer.close();
+            }
+
             // invoke finish event script
             ScriptUtils.execute(scriptSettings, "finish", v -> {
                 v.putAll(vars);
@@ -0,0 +1,187 @@
+package org.codelibs.riverweb.app.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Resource;
+
+import org.codelibs.core.lang.StringUtil;
+import org.codelibs.fess.crawler.client.EsClient;
+import org.codelibs.riverweb.util.ConfigProperties;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.functionscore.ScoreFunctionBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Claims crawl requests in the queue type of the config index.
+ * A claimed entry has a lease which expires unless it is renewed, so entries
+ * of a crashed worker are claimed by another worker after the lease expires.
+ * Entries are claimed and renewed by versioned updates, so only one worker
+ * wins an entry.
+ */
+public class QueueService {
+    private static final Logger logger = LoggerFactory.getLogger(QueueService.class);
+
+    protected static final String LEASE_OWNER_FIELD = "lease_owner";
+
+    protected static final String LEASE_EXPIRES_FIELD = "lease_expires";
+
+    @Resource
+    protected EsClient esClient;
+
+    @Resource
+    protected ConfigProperties config;
+
+    protected long leaseMillis = 60 * 1000L;
+
+    /**
+     * Claims queue entries whose lease is not taken or expired.
+     *
+     * @param queueQuery query to select entries, or null for random entries
+     * @param size the max number of claimed entries
+     * @param owner name of the worker
+     * @return claimed entries
+     */
+    public List<QueueEntry> claim(final String queueQuery, final int size, final String owner) {
+        final String configIndex = config.getConfigIndex();
+        final String queueType = config.getQueueType();
+        final long now = System.currentTimeMillis();
+
+        final QueryBuilder query;
+        if (StringUtil.isNotBlank(queueQuery)) {
+            query = QueryBuilders.wrapperQuery(queueQuery);
+        } else {
+            query = QueryBuilders.functionScoreQuery().add(ScoreFunctionBuilders.randomFunction(System.nanoTime()));
+        }
+        final BoolQueryBuilder leaseFilter = QueryBuilders.boolQuery()
+                .should(QueryBuilders.boolQuery().mustNot(QueryBuilders.existsQuery(LEASE_EXPIRES_FIELD)))
+                .should(QueryBuilders.rangeQuery(LEASE_EXPIRES_FIELD).lt(now)).minimumNumberShouldMatch(1);
+        final SearchResponse response = esClient.prepareSearch(configIndex).setTypes(queueType)
+                .setQuery(QueryBuilders.boolQuery().must(query).filter(leaseFilter)).setVersion(true).setSize(size).execute()
+                .actionGet();
+        final SearchHit[] hits = response.getHits().getHits();
+        if (hits.length == 0) {
+            return Collections.emptyList();
+        }
+
+        // claim all hits in one request
+        final long expires = now + leaseMillis;
+        final BulkRequestBuilder bulkBuilder = esClient.prepareBulk();
+        for (final SearchHit hit : hits) {
+            bulkBuilder.add(esClient.prepareUpdate(hit.getIndex(), hit.getType(), hit.getId()).setVersion(hit.getVersion())
+                    .setDoc(LEASE_OWNER_FIELD, owner, LEASE_EXPIRES_FIELD, expires));
+        }
+        final BulkItemResponse[] items = bulkBuilder.execute().actionGet().getItems();
+        final List<QueueEntry> entryList = new ArrayList<>(items.length);
+        for (int i = 0; i < items.length && i < hits.length; i++) {
+            if (items[i].isFailed()) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Failed to claim " + hits[i].getIndex() + "/" + hits[i].getType() + "/" + hits[i].getId() + ": "
+                            + items[i].getFailureMessage());
+                }
+                continue;
+            }
+            entryList.add(new QueueEntry(hits[i].getIndex(), hits[i].getType(), hits[i].getId(), items[i].getVersion(),
+                    hits[i].getSource(), owner));
+        }
+        return entryList;
+    }
+
+    /**
+     * Extends the lease of the entry.
+     *
+     * @param entry claimed entry
+     * @return false if the lease was lost
+     */
+    public boolean renew(final QueueEntry entry) {
+        synchronized (entry) {
+            if (entry.completed) {
+                return true;
+            }
+            try {
+                entry.version = esClient.prepareUpdate(entry.index, entry.type, entry.id).setVersion(entry.version)
+                        .setDoc(LEASE_OWNER_FIELD, entry.owner, LEASE_EXPIRES_FIELD, System.currentTimeMillis() + leaseMillis).execute()
+                        .actionGet().getVersion();
+                return true;
+            } catch (final VersionConflictEngineException e) {
+                logger.warn("Lost the lease of " + entry);
+                return false;
+            } catch (final Exception e) {
+                logger.warn("Failed to renew the lease of " + entry, e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Removes the claimed entry from the queue.
+     *
+     * @param entry claimed entry
+     * @return false if the lease was lost
+     */
+    public boolean complete(final QueueEntry entry) {
+        synchronized (entry) {
+            entry.completed = true;
+            try {
+                return esClient.prepareDelete(entry.index, entry.type, entry.id).setVersion(entry.version).execute().actionGet()
+                        .isFound();
+            } catch (final VersionConflictEngineException e) {
+                logger.warn("Lost the lease of " + entry);
+                return false;
+            }
+        }
+    }
+
+    public long getLeaseMillis() {
+        return leaseMillis;
+    }
+
+    public void setLeaseMillis(final long leaseMillis) {
+        this.leaseMillis = leaseMillis;
+    }
+
+    public static class QueueEntry {
+        protected final String index;
+
+        protected final String type;
+
+        protected final String id;
+
+        protected final Map<String, Object> source;
+
+        protected final String owner;
+
+        protected long version;
+
+        protected boolean completed = false;
+
+        protected QueueEntry(final String index, final String type, final String id, final long version, final Map<String, Object> source,
+                final String owner) {
+            this.index = index;
+            this.type = type;
+            this.id = id;
+            this.version = version;
+            this.source = source;
+            this.owner = owner;
+        }
+
+        public Map<String, Object> getSource() {
+            return source;
+        }
+
+        @Override
+        public String toString() {
+            return index + "/" + type + "/" + id;
+        }
+    }
+}
@@ -3,9 +3,15 @@ package org.codelibs.riverweb.app.service;
 import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.annotation.Resource;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
@@ -22,43 +28,192 @@ public class ScriptService {
     @Resource
     protected EsClient esClient;
 
-    public Object execute(final String lang, final String script, final ScriptType scriptType, final Map<String, Object> localVars) {
-        final ScriptEngineManager manager = new ScriptEngineManager();
-        final ScriptEngine engine = manager.getEngineByName(lang);
+    protected long indexedScriptTtl = 60 * 1000L;
 
-        for (final Map.Entry<String, Object> entry : localVars.entrySet()) {
-            engine.put(entry.getKey(), entry.getValue());
-        }
+    protected int compiledScriptCacheSize = 100;
+
+    protected ScriptEngineManager scriptEngineManager = new ScriptEngineManager();
+
+    // engines and compiled scripts are confined to a crawler thread
+    protected final ThreadLocal<Map<String, ScriptEngine>> engineMapLocal = new ThreadLocal<>();
+
+    protected final ThreadLocal<Map<String, Bindings>> bindingsMapLocal = new ThreadLocal<>();
+
+    protected final ThreadLocal<Map<String, CompiledScript>> compiledScriptMapLocal = new ThreadLocal<>();
+
+    protected final Map<String, CachedScript> fileScriptMap = new ConcurrentHashMap<>();
+
+    protected final Map<String, CachedScript> indexedScriptMap = new ConcurrentHashMap<>();
+
+    public Object execute(final String lang, final String script, final ScriptType scriptType, final Map<String, Object> localVars) {
+        final ScriptEngine engine = getScriptEngine(lang);
+        final Bindings bindings = getBindings(lang, engine);
+        // variables of the previous execution do not leak to this one
+        bindings.clear();
+        bindings.putAll(localVars);
         try {
-            return engine.eval(getScriptContent(lang, script, scriptType));
+            final String content = getScriptContent(lang, script, scriptType);
+            final CompiledScript compiledScript = getCompiledScript(lang, engine, content);
+            if (compiledScript != null) {
+                return compiledScript.eval(bindings);
+            }
+            return engine.eval(content, bindings);
         } catch (final ScriptException e) {
             throw new ScriptExecutionException("lang: " + lang + ", script: " + script + ", type: " + scriptType, e);
         }
     }
 
+    protected ScriptEngine getScriptEngine(final String lang) {
+        Map<String, ScriptEngine> engineMap = engineMapLocal.get();
+        if (engineMap == null) {
+            engineMap = new HashMap<>();
+            engineMapLocal.set(engineMap);
+        }
+        ScriptEngine engine = engineMap.get(lang);
+        if (engine == null) {
+            engine = scriptEngineManager.getEngineByName(lang);
+            if (engine == null) {
+                throw new ScriptExecutionException("Script engine for " + lang + " is not found.");
+            }
+            engineMap.put(lang, engine);
+        }
+        return engine;
+    }
+
+    protected Bindings getBindings(final String lang, final ScriptEngine engine) {
+        Map<String, Bindings> bindingsMap = bindingsMapLocal.get();
+        if (bindingsMap == null) {
+            bindingsMap = new HashMap<>();
+            bindingsMapLocal.set(bindingsMap);
+        }
+        // creating bindings is expensive for some engines, such as a new global of Nashorn
+        Bindings bindings = bindingsMap.get(lang);
+        if (bindings == null) {
+            bindings = engine.createBindings();
+            bindingsMap.put(lang, bindings);
+        }
+        return bindings;
+    }
+
+    protected CompiledScript getCompiledScript(final String lang, final ScriptEngine engine, final String content) throws ScriptException {
+        if (!(engine instanceof Compilable) || content == null) {
+            return null;
+        }
+
+        Map<String, CompiledScript> compiledScriptMap = compiledScriptMapLocal.get();
+        if (compiledScriptMap == null) {
+            compiledScriptMap = new LinkedHashMap<String, CompiledScript>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, CompiledScript> eldest) {
+                    return size() > compiledScriptCacheSize;
+                }
+            };
+            compiledScriptMapLocal.set(compiledScriptMap);
+        }
+        final String key = lang + ":" + content;
+        CompiledScript compiledScript = compiledScriptMap.get(key);
+        if (compiledScript == null) {
+            compiledScript = ((Compilable) engine).compile(content);
+            compiledScriptMap.put(key, compiledScript);
+        }
+        return compiledScript;
+    }
+
     private String getScriptContent(final String lang, final String script, final ScriptType scriptType) {
         switch (scriptType) {
         case INLINE:
             return script;
         case FILE:
-            if (Files.exists(Paths.get(script))) {
-                return FileUtil.readText(new File(script));
-            } else {
-                return FileUtil.readText(script);
-            }
+            return getFileScriptContent(script);
         case INDEXED:
-            final GetResponse response = esClient.prepareGet(SCRIPT_INDEX, lang, script).execute().actionGet();
-            if (!response.isExists()) {
-                throw new ScriptExecutionException("/" + SCRIPT_INDEX + "/" + lang + "/" + script + " does not exist.");
-            }
-            final Map<String, Object> source = response.getSource();
-            if (source != null) {
-                return (String) source.get("script");
-            }
-            break;
+            return getIndexedScriptContent(lang, script);
         default:
             break;
         }
         return null;
     }
+
+    private String getFileScriptContent(final String script) {
+        final File file = new File(script);
+        if (Files.exists(Paths.get(script))) {
+            // reloaded when the file is modified
+            final long lastModified = file.lastModified();
+            final long length = file.length();
+            final CachedScript cachedScript = fileScriptMap.get(script);
+            if (cachedScript != null && cachedScript.version == lastModified && cachedScript.length == length) {
+                return cachedScript.content;
+            }
+            final String content = FileUtil.readText(file);
+            fileScriptMap.put(script, new CachedScript(content, lastModified, length));
+            return content;
+        } else {
+            // a resource in the classpath does not change
+            final CachedScript cachedScript = fileScriptMap.get(script);
+            if (cachedScript != null) {
+                return cachedScript.content;
+            }
+            final String content = FileUtil.readText(script);
+            fileScriptMap.put(script, new CachedScript(content, 0));
+            return content;
+        }
+    }
+
+    private String getIndexedScriptContent(final String lang, final String script) {
+        final String key = lang + "/" + script;
+        final long now = System.currentTimeMillis();
+        final CachedScript cachedScript = indexedScriptMap.get(key);
+        if (cachedScript != null && cachedScript.version > now) {
+            return cachedScript.content;
+        }
+
+        final GetResponse response = esClient.prepareGet(SCRIPT_INDEX, lang, script).execute().actionGet();
+        if (!response.isExists()) {
+            indexedScriptMap.remove(key);
+            throw new ScriptExecutionException("/" + SCRIPT_INDEX + "/" + lang + "/" + script + " does not exist.");
+        }
+        final Map<String, Object> source = response.getSource();
+        if (source != null) {
+            final String content = (String) source.get("script");
+            if (content != null) {
+                indexedScriptMap.put(key, new CachedScript(content, now + indexedScriptTtl));
+            }
+            return content;
+        }
+        return null;
+    }
+
+    public void clearCache() {
+        fileScriptMap.clear();
+        indexedScriptMap.clear();
+    }
+
+    public void setIndexedScriptTtl(final long indexedScriptTtl) {
+        this.indexedScriptTtl = indexedScriptTtl;
+    }
+
+    public void setCompiledScriptCacheSize(final int compiledScriptCacheSize) {
+        this.compiledScriptCacheSize = compiledScriptCacheSize;
+    }
+
+    protected static class CachedScript {
+        protected final String content;
+
+        // lastModified of the file or expiration time
+        protected final long version;
+
+        // length of the file
+        protected final long length;
+
+        protected CachedScript(final String content, final long version) {
+            this(content, version, -1L);
+        }
+
+        protected CachedScript(final String content, final long version, final long length) {
+            this.content = content;
+            this.version = version;
+            this.length = length;
+        }
+    }
 }
@@ -1,14 +1,24 @@
 package org.codelibs.riverweb.config;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
 
 import org.codelibs.fess.crawler.entity.ResponseData;
+import org.codelibs.riverweb.crawler.ChildUrlFilter;
+import org.codelibs.riverweb.crawler.EmbeddedUrlQueue;
+import org.codelibs.riverweb.crawler.LastModifiedCache;
+import org.codelibs.riverweb.crawler.UrlBloomFilter;
 import org.codelibs.riverweb.entity.ScrapingRule;
+import org.codelibs.riverweb.entity.ScrapingRuleMatcher;
+import org.codelibs.riverweb.indexer.BulkIndexer;
+import org.codelibs.riverweb.interval.WebRiverIntervalController;
+import org.codelibs.riverweb.pipeline.Stage;
 
 public class RiverConfig {
 
+    public static final String ID_STRATEGY_AUTO = "auto";
+
+    public static final String ID_STRATEGY_URL = "url";
+
     private String index;
 
     private String type;
@@ -17,9 +27,27 @@ public class RiverConfig {
 
     private boolean incremental;
 
+    private String idStrategy = ID_STRATEGY_AUTO;
+
     private Map<String, Object> scriptSettings;
 
-    private final List<ScrapingRule> scrapingRuleList = new ArrayList<>();
+    private BulkIndexer bulkIndexer;
+
+    private LastModifiedCache lastModifiedCache;
+
+    private ChildUrlFilter childUrlFilter;
+
+    private UrlBloomFilter urlBloomFilter;
+
+    private EmbeddedUrlQueue embeddedUrlQueue;
+
+    private WebRiverIntervalController intervalController;
+
+    private Stage extractStage;
+
+    private Stage indexStage;
+
+    private final ScrapingRuleMatcher scrapingRuleMatcher = new ScrapingRuleMatcher();
 
     public String getIndex() {
         return index;
@@ -53,18 +81,25 @@ public class RiverConfig {
         this.incremental = incremental;
     }
 
+    public String getIdStrategy() {
+        return idStrategy;
+    }
+
+    public void setIdStrategy(final String idStrategy) {
+        this.idStrategy = idStrategy;
+    }
+
+    public boolean isUrlBasedId() {
+        return ID_STRATEGY_URL.equals(idStrategy);
+    }
+
     public void addScrapingRule(final Map<String, Object> settingMap, final Map<String, Object> patternMap,
             final Map<String, Map<String, Object>> scrapingRuleMap) {
-        scrapingRuleList.add(new ScrapingRule(settingMap, patternMap, scrapingRuleMap));
+        scrapingRuleMatcher.add(new ScrapingRule(settingMap, patternMap, scrapingRuleMap));
     }
 
     public ScrapingRule getScrapingRule(final ResponseData responseData) {
-        for (final ScrapingRule scrapingRule : scrapingRuleList) {
-            if (scrapingRule.matches(responseData)) {
-                return scrapingRule;
-            }
-        }
-        return null;
+        return scrapingRuleMatcher.match(responseData);
     }
 
     public Map<String, Object> getScriptSettings() {
@@ -74,4 +109,68 @@ public class RiverConfig {
     public void setScriptSettings(final Map<String, Object> scriptSettings) {
         this.scriptSettings = scriptSettings;
     }
+
+    public BulkIndexer getBulkIndexer() {
+        return bulkIndexer;
+    }
+
+    public void setBulkIndexer(final BulkIndexer bulkIndexer) {
+        this.bulkIndexer = bulkIndexer;
+    }
+
+    public LastModifiedCache getLastModifiedCache() {
+        return lastModifiedCache;
+    }
+
+    public void setLastModifiedCache(final LastModifiedCache lastModifiedCache) {
+        this.lastModifiedCache = lastModifiedCache;
+    }
+
+    public ChildUrlFilter getChildUrlFilter() {
+        return childUrlFilter;
+    }
+
+    public void setChildUrlFilter(final ChildUrlFilter childUrlFilter) {
+        this.childUrlFilter = childUrlFilter;
+    }
+
+    public UrlBloomFilter getUrlBloomFilter() {
+        return urlBloomFilter;
+    }
+
+    public void setUrlBloomFilter(final UrlBloomFilter urlBloomFilter) {
+        this.urlBloomFilter = urlBloomFilter;
+    }
+
+    public EmbeddedUrlQueue getEmbeddedUrlQueue() {
+        return embeddedUrlQueue;
+    }
+
+    public void setEmbeddedUrlQueue(final EmbeddedUrlQueue embeddedUrlQueue) {
+        this.embeddedUrlQueue = embeddedUrlQueue;
+    }
+
+    public WebRiverIntervalController getIntervalController() {
+        return intervalController;
+    }
+
+    public void setIntervalController(final WebRiverIntervalController intervalController) {
+        this.intervalController = intervalController;
+    }
+
+    public Stage getExtractStage() {
+        return extractStage;
+    }
+
+    public void setExtractStage(final Stage extractStage) {
+        this.extractStage = extractStage;
+    }
+
+    public Stage getIndexStage() {
+        return indexStage;
+    }
+
+    public void setIndexStage(final Stage indexStage) {
+        this.indexStage = indexStage;
+    }
 }
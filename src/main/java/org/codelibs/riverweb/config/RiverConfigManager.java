@@ -1,25 +1,32 @@
 package org.codelibs.riverweb.config;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class RiverConfigManager {
-    protected Map<String, RiverConfig> configMap = new HashMap<>();
+    protected Map<String, RiverConfig> configMap = new ConcurrentHashMap<>();
 
     public RiverConfig get(final String sessionId) {
-        synchronized (configMap) {
-            if (configMap.containsKey(sessionId)) {
-                return configMap.get(sessionId);
-            }
-            RiverConfig config = new RiverConfig();
-            configMap.put(sessionId, config);
+        final RiverConfig config = configMap.get(sessionId);
+        if (config != null) {
             return config;
         }
+        return configMap.computeIfAbsent(sessionId, k -> new RiverConfig());
+    }
+
+    /**
+     * Returns the config of the session without creating it, such as for
+     * services which may be called after the session is finished.
+     *
+     * @param sessionId session id
+     * @return config of the session
+     */
+    public Optional<RiverConfig> find(final String sessionId) {
+        return Optional.ofNullable(configMap.get(sessionId));
     }
 
     public RiverConfig remove(final String sessionId) {
-        synchronized (configMap) {
-            return configMap.remove(sessionId);
-        }
+        return configMap.remove(sessionId);
     }
 }
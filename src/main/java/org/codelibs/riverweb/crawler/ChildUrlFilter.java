@@ -0,0 +1,170 @@
+package org.codelibs.riverweb.crawler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.codelibs.riverweb.util.FingerprintUtils;
+import org.codelibs.riverweb.util.SettingsUtils;
+
+import com.carrotsearch.hppc.LongHashSet;
+
+/**
+ * Filters child urls of a session before they are sent to the url queue.
+ * Urls are checked by include/exclude patterns, canonicalized, and dropped
+ * if they were already queued or crawled in the session.
+ */
+public class ChildUrlFilter {
+    protected static final List<String> DEFAULT_TRACKING_PARAMS =
+            Arrays.asList("utm_*", "fbclid", "gclid", "dclid", "msclkid", "yclid", "_ga", "mc_cid", "mc_eid");
+
+    protected final Pattern includePattern;
+
+    protected final Pattern excludePattern;
+
+    protected final Pattern trackingParamPattern;
+
+    protected final LongHashSet seenSet = new LongHashSet();
+
+    /**
+     * Creates a filter from "child_url_filter" settings:
+     * {"tracking_params":["utm_*","fbclid",...]}
+     *
+     * @param includeUrlList include_urls of the session
+     * @param excludeUrlList exclude_urls of the session
+     * @param filterSettings filter settings
+     */
+    public ChildUrlFilter(final List<String> includeUrlList, final List<String> excludeUrlList, final Map<String, Object> filterSettings) {
+        includePattern = compile(includeUrlList);
+        excludePattern = compile(excludeUrlList);
+        final List<String> trackingParamList = SettingsUtils.get(filterSettings, "tracking_params", DEFAULT_TRACKING_PARAMS);
+        trackingParamPattern = compile(trackingParamList.stream()
+                .map(s -> s.endsWith("*") ? Pattern.quote(s.substring(0, s.length() - 1)) + ".*" : Pattern.quote(s))
+                .collect(Collectors.toList()));
+    }
+
+    protected static Pattern compile(final List<String> regexList) {
+        if (regexList == null || regexList.isEmpty()) {
+            return null;
+        }
+        return Pattern.compile(regexList.stream().map(s -> "(?:" + s + ")").collect(Collectors.joining("|")));
+    }
+
+    /**
+     * Checks the child url. The url is not marked as seen until it is queued.
+     *
+     * @param url child url
+     * @return canonicalized url, or null if the url is filtered out
+     */
+    public String filter(final String url) {
+        if (url == null) {
+            return null;
+        }
+        // patterns are for urls as written, like include/exclude of the crawler
+        if (includePattern != null && !includePattern.matcher(url).matches()) {
+            return null;
+        }
+        if (excludePattern != null && excludePattern.matcher(url).matches()) {
+            return null;
+        }
+        final String canonicalUrl = canonicalize(url);
+        if (isSeen(canonicalUrl)) {
+            return null;
+        }
+        return canonicalUrl;
+    }
+
+    /**
+     * @param url url
+     * @return true if the url was queued or crawled
+     */
+    public boolean isSeen(final String url) {
+        final long fingerprint = FingerprintUtils.fingerprint64(canonicalize(url));
+        synchronized (seenSet) {
+            return seenSet.contains(fingerprint);
+        }
+    }
+
+    /**
+     * Marks the url as seen, such as a queued or crawled url, or its canonical url.
+     *
+     * @param url url
+     * @return true if the url was not seen
+     */
+    public boolean addSeen(final String url) {
+        final long fingerprint = FingerprintUtils.fingerprint64(canonicalize(url));
+        synchronized (seenSet) {
+            return seenSet.add(fingerprint);
+        }
+    }
+
+    public String canonicalize(final String url) {
+        final int schemePos = url.indexOf("://");
+        if (schemePos <= 0) {
+            return url;
+        }
+        final String scheme = url.substring(0, schemePos).toLowerCase(Locale.ROOT);
+        String rest = url.substring(schemePos + 3);
+        final int fragmentPos = rest.indexOf('#');
+        if (fragmentPos >= 0) {
+            rest = rest.substring(0, fragmentPos);
+        }
+
+        int authorityEnd = rest.length();
+        for (final char c : new char[] { '/', '?' }) {
+            final int pos = rest.indexOf(c);
+            if (pos >= 0 && pos < authorityEnd) {
+                authorityEnd = pos;
+            }
+        }
+        final String authority = rest.substring(0, authorityEnd);
+        final String pathAndQuery = rest.substring(authorityEnd);
+
+        final StringBuilder buf = new StringBuilder(url.length());
+        buf.append(scheme).append("://");
+        final int userInfoPos = authority.lastIndexOf('@');
+        if (userInfoPos >= 0) {
+            buf.append(authority, 0, userInfoPos + 1);
+        }
+        String host = authority.substring(userInfoPos + 1).toLowerCase(Locale.ROOT);
+        final int portPos = host.lastIndexOf(':');
+        if (portPos >= 0 && portPos > host.lastIndexOf(']')) {
+            final String port = host.substring(portPos + 1);
+            if (port.isEmpty() || ("http".equals(scheme) && "80".equals(port)) || ("https".equals(scheme) && "443".equals(port))) {
+                host = host.substring(0, portPos);
+            }
+        }
+        buf.append(host);
+
+        final int queryPos = pathAndQuery.indexOf('?');
+        final String path = queryPos >= 0 ? pathAndQuery.substring(0, queryPos) : pathAndQuery;
+        buf.append(path.isEmpty() ? "/" : path);
+        if (queryPos >= 0) {
+            final List<String> paramList = new ArrayList<>();
+            for (final String param : pathAndQuery.substring(queryPos + 1).split("&")) {
+                if (param.isEmpty()) {
+                    continue;
+                }
+                final int eqPos = param.indexOf('=');
+                final String name = eqPos >= 0 ? param.substring(0, eqPos) : param;
+                if (trackingParamPattern == null || !trackingParamPattern.matcher(name).matches()) {
+                    paramList.add(param);
+                }
+            }
+            if (!paramList.isEmpty()) {
+                buf.append('?').append(String.join("&", paramList));
+            }
+        }
+        return buf.toString();
+    }
+
+    public int getSeenSize() {
+        synchronized (seenSet) {
+            return seenSet.size();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package org.codelibs.riverweb.crawler;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.codelibs.fess.crawler.exception.CrawlingAccessException;
+import org.codelibs.riverweb.util.FingerprintUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.carrotsearch.hppc.LongHashSet;
+
+/**
+ * In-process url frontier of a session.
+ * Queued urls are kept in memory up to maxMemorySize entries, and later
+ * entries are appended to spill files which are read back through a
+ * memory-mapped buffer. Urls queued once are never queued again.
+ */
+public class EmbeddedUrlQueue implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(EmbeddedUrlQueue.class);
+
+    protected final int maxMemorySize;
+
+    protected final Path spillDir;
+
+    protected final LongHashSet queuedSet = new LongHashSet();
+
+    protected final ArrayDeque<Map<String, Object>> memoryQueue = new ArrayDeque<>();
+
+    protected final ArrayDeque<Path> segmentQueue = new ArrayDeque<>();
+
+    protected Path writingSegment;
+
+    protected DataOutputStream writer;
+
+    protected int writingCount;
+
+    protected long spilledCount;
+
+    // urls of a resumed session may be queued in Elasticsearch
+    protected volatile boolean indexQueueEnabled = false;
+
+    /**
+     * @param maxMemorySize the number of entries kept in memory
+     * @param spillDir directory for spill files, or null for the temp directory
+     */
+    public EmbeddedUrlQueue(final int maxMemorySize, final Path spillDir) {
+        this.maxMemorySize = maxMemorySize;
+        this.spillDir = spillDir;
+    }
+
+    /**
+     * @param url url of the entry
+     * @param entry properties of a url queue
+     * @return true if queued, false if the url was queued before
+     */
+    public synchronized boolean offer(final String url, final Map<String, Object> entry) {
+        if (!queuedSet.add(FingerprintUtils.fingerprint64(url))) {
+            return false;
+        }
+        if (writer == null && segmentQueue.isEmpty() && memoryQueue.size() < maxMemorySize) {
+            memoryQueue.add(entry);
+        } else {
+            spill(entry);
+        }
+        return true;
+    }
+
+    public synchronized Map<String, Object> poll() {
+        if (memoryQueue.isEmpty()) {
+            loadSegment();
+        }
+        return memoryQueue.poll();
+    }
+
+    /**
+     * @return true if the url queue in Elasticsearch needs to be polled when this queue is empty
+     */
+    public boolean isIndexQueueEnabled() {
+        return indexQueueEnabled;
+    }
+
+    public void setIndexQueueEnabled(final boolean indexQueueEnabled) {
+        this.indexQueueEnabled = indexQueueEnabled;
+    }
+
+    public synchronized long size() {
+        return memoryQueue.size() + spilledCount;
+    }
+
+    public synchronized int getQueuedSize() {
+        return queuedSet.size();
+    }
+
+    protected void spill(final Map<String, Object> entry) {
+        try {
+            if (writer == null) {
+                writingSegment = spillDir != null ? Files.createTempFile(spillDir, "river-web-queue-", ".tmp")
+                        : Files.createTempFile("river-web-queue-", ".tmp");
+                writer = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(writingSegment, StandardOpenOption.APPEND)));
+                writingCount = 0;
+            }
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+            try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+                oos.writeObject(new HashMap<>(entry));
+            }
+            writer.writeInt(baos.size());
+            baos.writeTo(writer);
+            writingCount++;
+            spilledCount++;
+            if (writingCount >= maxMemorySize) {
+                closeWriter();
+            }
+        } catch (final IOException e) {
+            throw new CrawlingAccessException("Could not spill a url queue.", e);
+        }
+    }
+
+    protected void closeWriter() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+            segmentQueue.add(writingSegment);
+            writingSegment = null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void loadSegment() {
+        try {
+            if (segmentQueue.isEmpty()) {
+                closeWriter();
+            }
+            final Path segment = segmentQueue.poll();
+            if (segment == null) {
+                return;
+            }
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                while (buffer.remaining() > 4) {
+                    final byte[] bytes = new byte[buffer.getInt()];
+                    buffer.get(bytes);
+                    try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                        memoryQueue.add((Map<String, Object>) ois.readObject());
+                    }
+                    spilledCount--;
+                }
+            } catch (final ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+            Files.delete(segment);
+        } catch (final IOException e) {
+            throw new CrawlingAccessException("Could not load a url queue.", e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            closeWriter();
+        } catch (final IOException e) {
+            logger.warn("Failed to close " + writingSegment, e);
+        }
+        for (final Path segment : segmentQueue) {
+            try {
+                Files.deleteIfExists(segment);
+            } catch (final IOException e) {
+                logger.warn("Failed to delete " + segment, e);
+            }
+        }
+        segmentQueue.clear();
+        memoryQueue.clear();
+        spilledCount = 0;
+    }
+}
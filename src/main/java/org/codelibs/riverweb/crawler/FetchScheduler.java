@@ -0,0 +1,208 @@
+package org.codelibs.riverweb.crawler;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.codelibs.fess.crawler.exception.CrawlingAccessException;
+import org.codelibs.riverweb.util.UrlUtils;
+
+/**
+ * Shares fetch slots among sessions crawled in this process.
+ * A fetch waits for a slot until the number of fetches in the process, in
+ * the session and for the host are under their limits. Free slots are given
+ * to sessions in proportion to their weights by stride scheduling.
+ */
+public class FetchScheduler {
+    protected static final Slot NOOP_SLOT = () -> {};
+
+    // 0 means no limit
+    protected int maxSlots = 0;
+
+    protected int maxHostSlots = 0;
+
+    protected int running = 0;
+
+    protected final Map<String, Session> sessionMap = new LinkedHashMap<>();
+
+    protected final Map<String, Integer> hostCountMap = new HashMap<>();
+
+    /**
+     * @param sessionId session id
+     * @param maxSlots the max number of fetches in the session, or 0 for no limit
+     * @param weight weight of the session
+     */
+    public synchronized void register(final String sessionId, final int maxSlots, final int weight) {
+        final Session session = new Session(maxSlots, Math.max(weight, 1));
+        session.pass = getVirtualTime();
+        sessionMap.put(sessionId, session);
+    }
+
+    public synchronized void unregister(final String sessionId) {
+        final Session session = sessionMap.remove(sessionId);
+        if (session != null && !session.waiters.isEmpty()) {
+            session.waiters.clear();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits for a fetch slot.
+     *
+     * @param sessionId session id
+     * @param url url to be fetched
+     * @return slot which needs to be released after fetching
+     */
+    public Slot acquire(final String sessionId, final String url) {
+        final String host = UrlUtils.getHost(url);
+        synchronized (this) {
+            final Session session = sessionMap.get(sessionId);
+            if (session == null || (maxSlots <= 0 && maxHostSlots <= 0 && session.maxSlots <= 0)) {
+                return NOOP_SLOT;
+            }
+            if (session.running == 0 && session.waiters.isEmpty()) {
+                // an idle session does not take over slots by its saved pass
+                session.pass = Math.max(session.pass, getVirtualTime());
+            }
+            final Waiter waiter = new Waiter(host);
+            session.waiters.add(waiter);
+            try {
+                dispatch();
+                while (!waiter.granted) {
+                    if (!sessionMap.containsKey(sessionId)) {
+                        return NOOP_SLOT;
+                    }
+                    wait();
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (waiter.granted) {
+                    // the slot was given before the interrupt
+                    release(session, host);
+                }
+                throw new CrawlingAccessException("Interrupted while waiting for a fetch slot: " + url, e);
+            } finally {
+                if (!waiter.granted) {
+                    session.waiters.remove(waiter);
+                }
+            }
+            return () -> release(session, host);
+        }
+    }
+
+    protected synchronized void release(final Session session, final String host) {
+        running--;
+        session.running--;
+        final int count = hostCountMap.getOrDefault(host, 1) - 1;
+        if (count > 0) {
+            hostCountMap.put(host, count);
+        } else {
+            hostCountMap.remove(host);
+        }
+        dispatch();
+    }
+
+    /**
+     * Gives free slots to waiters of the session with the least pass.
+     */
+    protected void dispatch() {
+        boolean granted = false;
+        while (maxSlots <= 0 || running < maxSlots) {
+            Session next = null;
+            Waiter nextWaiter = null;
+            for (final Session session : sessionMap.values()) {
+                if (session.maxSlots > 0 && session.running >= session.maxSlots) {
+                    continue;
+                }
+                if (next != null && session.pass >= next.pass) {
+                    continue;
+                }
+                final Waiter waiter = session.getRunnableWaiter();
+                if (waiter != null) {
+                    next = session;
+                    nextWaiter = waiter;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            next.waiters.remove(nextWaiter);
+            next.running++;
+            next.pass += 1d / next.weight;
+            running++;
+            hostCountMap.merge(nextWaiter.host, 1, Integer::sum);
+            nextWaiter.granted = true;
+            granted = true;
+        }
+        if (granted) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return the least pass of active sessions
+     */
+    protected double getVirtualTime() {
+        return sessionMap.values().stream().filter(s -> s.running > 0 || !s.waiters.isEmpty()).mapToDouble(s -> s.pass).min()
+                .orElse(0d);
+    }
+
+    protected boolean isHostAvailable(final String host) {
+        return maxHostSlots <= 0 || hostCountMap.getOrDefault(host, 0) < maxHostSlots;
+    }
+
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    public synchronized void setMaxSlots(final int maxSlots) {
+        this.maxSlots = maxSlots;
+        dispatch();
+    }
+
+    public synchronized void setMaxHostSlots(final int maxHostSlots) {
+        this.maxHostSlots = maxHostSlots;
+        dispatch();
+    }
+
+    public interface Slot {
+        void release();
+    }
+
+    protected class Session {
+        protected final int maxSlots;
+
+        protected final int weight;
+
+        protected final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+
+        protected int running = 0;
+
+        protected double pass = 0d;
+
+        protected Session(final int maxSlots, final int weight) {
+            this.maxSlots = maxSlots;
+            this.weight = weight;
+        }
+
+        protected Waiter getRunnableWaiter() {
+            for (final Waiter waiter : waiters) {
+                if (isHostAvailable(waiter.host)) {
+                    return waiter;
+                }
+            }
+            return null;
+        }
+    }
+
+    protected static class Waiter {
+        protected final String host;
+
+        protected boolean granted = false;
+
+        protected Waiter(final String host) {
+            this.host = host;
+        }
+    }
+}
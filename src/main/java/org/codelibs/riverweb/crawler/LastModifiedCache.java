@@ -0,0 +1,362 @@
+package org.codelibs.riverweb.crawler;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.codelibs.riverweb.util.ConversionUtil;
+import org.codelibs.riverweb.util.FingerprintUtils;
+import org.elasticsearch.action.search.MultiSearchRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.IndexNotFoundException;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.sort.SortOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.carrotsearch.hppc.LongIntHashMap;
+import com.carrotsearch.hppc.LongLongHashMap;
+import com.carrotsearch.hppc.LongObjectHashMap;
+
+/**
+ * Keeps lastModified, etag and digest of indexed documents for incremental
+ * crawling, and positions of url-based ids to delete stale documents.
+ * The target index is scrolled once at the start of a session and urls
+ * are kept as 64-bit fingerprints. If the snapshot could not be loaded
+ * completely, urls not in the snapshot are looked up by multi-search
+ * requests shared by crawler threads.
+ */
+public class LastModifiedCache {
+    private static final Logger logger = LoggerFactory.getLogger(LastModifiedCache.class);
+
+    protected static final String URL_FIELD = "url";
+
+    protected static final String LAST_MODIFIED_FIELD = "lastModified";
+
+    protected static final String ETAG_FIELD = "etag";
+
+    protected static final String DIGEST_FIELD = "digest";
+
+    protected static final String POSITION_FIELD = "position";
+
+    protected static final long NOT_FOUND = Long.MIN_VALUE;
+
+    /** A url has one document with a url-based id and no position. */
+    public static final int NO_POSITION = -1;
+
+    /** A url has documents which do not have url-based ids, or ids with and without position. */
+    public static final int MIXED_IDS = Integer.MIN_VALUE;
+
+    protected final Client client;
+
+    protected final String index;
+
+    protected final String type;
+
+    protected final LongLongHashMap lastModifiedMap = new LongLongHashMap();
+
+    protected final LongObjectHashMap<String> etagMap = new LongObjectHashMap<>();
+
+    // the first 64 bits of a content digest
+    protected final LongLongHashMap digestMap = new LongLongHashMap();
+
+    // NO_POSITION, the number of positions, or MIXED_IDS
+    protected final LongIntHashMap positionCountMap = new LongIntHashMap();
+
+    protected volatile boolean complete = false;
+
+    protected int scrollSize = 1000;
+
+    protected TimeValue scrollKeepAlive = TimeValue.timeValueMinutes(1);
+
+    protected int batchSize = 10;
+
+    protected long batchWaitMillis = 20;
+
+    protected final List<Lookup> pendingLookups = new ArrayList<>();
+
+    public LastModifiedCache(final Client client, final String index, final String type) {
+        this.client = client;
+        this.index = index;
+        this.type = type;
+    }
+
+    /**
+     * Loads url, lastModified, etag, digest and position of all documents in the target index.
+     * This method needs to be called before crawling.
+     */
+    public void load() {
+        final long startTime = System.currentTimeMillis();
+        String scrollId = null;
+        try {
+            SearchResponse response = client.prepareSearch(index).setTypes(type).setScroll(scrollKeepAlive)
+                    .setQuery(QueryBuilders.matchAllQuery())
+                    .addFields(URL_FIELD, LAST_MODIFIED_FIELD, ETAG_FIELD, DIGEST_FIELD, POSITION_FIELD)
+                    .addSort("_doc", SortOrder.ASC).setSize(scrollSize).execute().actionGet();
+            while (true) {
+                scrollId = response.getScrollId();
+                final SearchHits hits = response.getHits();
+                if (hits.getHits().length == 0) {
+                    break;
+                }
+                for (final SearchHit hit : hits) {
+                    final SearchHitField urlField = hit.getFields().get(URL_FIELD);
+                    if (urlField != null) {
+                        final long lastModified = getLastModified(hit);
+                        final String url = urlField.getValue().toString();
+                        final long key = FingerprintUtils.fingerprint64(url);
+                        addPosition(key, url, hit);
+                        // etag and digest are kept even if the document has no lastModified
+                        final int index = lastModifiedMap.indexOf(key);
+                        if (!lastModifiedMap.indexExists(index) || lastModified > lastModifiedMap.indexGet(index)) {
+                            lastModifiedMap.put(key, lastModified);
+                            final SearchHitField etagField = hit.getFields().get(ETAG_FIELD);
+                            if (etagField != null && etagField.getValue() != null) {
+                                etagMap.put(key, etagField.getValue().toString());
+                            } else {
+                                etagMap.remove(key);
+                            }
+                            final SearchHitField digestField = hit.getFields().get(DIGEST_FIELD);
+                            final Long digest = digestField != null ? toDigestKey(digestField.getValue()) : null;
+                            if (digest != null) {
+                                digestMap.put(key, digest);
+                            } else {
+                                digestMap.remove(key);
+                            }
+                        }
+                    }
+                }
+                response = client.prepareSearchScroll(scrollId).setScroll(scrollKeepAlive).execute().actionGet();
+            }
+            complete = true;
+        } catch (final IndexNotFoundException e) {
+            // nothing is indexed yet
+            complete = true;
+        } catch (final Exception e) {
+            logger.warn("Failed to load lastModified from " + index + "/" + type + ". Missing urls are searched on demand.", e);
+        } finally {
+            if (scrollId != null) {
+                try {
+                    client.prepareClearScroll().addScrollId(scrollId).execute().actionGet();
+                } catch (final Exception e) {
+                    logger.debug("Failed to clear scroll: " + scrollId, e);
+                }
+            }
+        }
+        if (logger.isInfoEnabled()) {
+            logger.info("Loaded " + lastModifiedMap.size() + " urls from " + index + "/" + type + " in "
+                    + (System.currentTimeMillis() - startTime) + "ms");
+        }
+    }
+
+    protected void addPosition(final long key, final String url, final SearchHit hit) {
+        final SearchHitField positionField = hit.getFields().get(POSITION_FIELD);
+        final int position = positionField != null && positionField.getValue() instanceof Number
+                ? ((Number) positionField.getValue()).intValue() : -1;
+        final int count;
+        if (!FingerprintUtils.documentId(url, position).equals(hit.getId())) {
+            count = MIXED_IDS;
+        } else {
+            count = position < 0 ? NO_POSITION : position + 1;
+        }
+        final int index = positionCountMap.indexOf(key);
+        if (!positionCountMap.indexExists(index)) {
+            positionCountMap.put(key, count);
+            return;
+        }
+        final int oldCount = positionCountMap.indexGet(index);
+        if (oldCount == MIXED_IDS || count == MIXED_IDS || (oldCount == NO_POSITION) != (count == NO_POSITION)) {
+            positionCountMap.indexReplace(index, MIXED_IDS);
+        } else {
+            positionCountMap.indexReplace(index, Math.max(oldCount, count));
+        }
+    }
+
+    /**
+     * @param url url
+     * @return NO_POSITION, the number of positions, MIXED_IDS, 0 if not indexed, or null if unknown
+     */
+    public Integer getPositionCount(final String url) {
+        final int index = positionCountMap.indexOf(FingerprintUtils.fingerprint64(url));
+        if (positionCountMap.indexExists(index)) {
+            return positionCountMap.indexGet(index);
+        }
+        return complete ? 0 : null;
+    }
+
+    /**
+     * @param url url
+     * @return lastModified of the url, or null if it is not indexed
+     */
+    public Long get(final String url) {
+        final int index = lastModifiedMap.indexOf(FingerprintUtils.fingerprint64(url));
+        if (lastModifiedMap.indexExists(index)) {
+            final long lastModified = lastModifiedMap.indexGet(index);
+            return lastModified != NOT_FOUND ? lastModified : null;
+        }
+        if (complete) {
+            // urls are visited once in a session, so a missing url is a new one
+            return null;
+        }
+        final long value = search(url);
+        return value != NOT_FOUND ? value : null;
+    }
+
+    /**
+     * @param url url
+     * @return etag of the url in the snapshot, or null if not found
+     */
+    public String getEtag(final String url) {
+        return etagMap.get(FingerprintUtils.fingerprint64(url));
+    }
+
+    /**
+     * @param url url
+     * @param digest hex digest of the current content
+     * @return true if the indexed document in the snapshot has the same digest
+     */
+    public boolean hasDigest(final String url, final String digest) {
+        final Long digestKey = toDigestKey(digest);
+        if (digestKey == null) {
+            return false;
+        }
+        final int index = digestMap.indexOf(FingerprintUtils.fingerprint64(url));
+        return digestMap.indexExists(index) && digestMap.indexGet(index) == digestKey.longValue();
+    }
+
+    protected static Long toDigestKey(final Object digest) {
+        if (digest == null) {
+            return null;
+        }
+        final String value = digest.toString();
+        if (value.length() < 16) {
+            return null;
+        }
+        try {
+            return Long.parseUnsignedLong(value.substring(0, 16), 16);
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+    }
+
+    protected long search(final String url) {
+        final Lookup lookup = new Lookup(url);
+        List<Lookup> batch = null;
+        synchronized (pendingLookups) {
+            pendingLookups.add(lookup);
+            if (pendingLookups.size() < batchSize) {
+                // wait for urls from other threads
+                try {
+                    pendingLookups.wait(batchWaitMillis);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (!lookup.done && pendingLookups.contains(lookup)) {
+                batch = new ArrayList<>(pendingLookups);
+                pendingLookups.clear();
+            }
+        }
+
+        if (batch != null) {
+            try {
+                search(batch);
+            } finally {
+                synchronized (pendingLookups) {
+                    for (final Lookup l : batch) {
+                        l.done = true;
+                    }
+                    pendingLookups.notifyAll();
+                }
+            }
+        } else {
+            synchronized (pendingLookups) {
+                while (!lookup.done) {
+                    try {
+                        pendingLookups.wait();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        }
+        return lookup.lastModified;
+    }
+
+    protected void search(final List<Lookup> batch) {
+        try {
+            final MultiSearchRequestBuilder builder = client.prepareMultiSearch();
+            for (final Lookup lookup : batch) {
+                builder.add(client.prepareSearch(index).setTypes(type).setQuery(QueryBuilders.termQuery(URL_FIELD, lookup.url))
+                        .addField(LAST_MODIFIED_FIELD).addSort(LAST_MODIFIED_FIELD, SortOrder.DESC).setSize(1));
+            }
+            final MultiSearchResponse.Item[] items = builder.execute().actionGet().getResponses();
+            for (int i = 0; i < items.length && i < batch.size(); i++) {
+                if (items[i].isFailure()) {
+                    logger.debug("Failed to retrieve lastModified: " + batch.get(i).url + " : " + items[i].getFailureMessage());
+                    continue;
+                }
+                final SearchHits hits = items[i].getResponse().getHits();
+                if (hits.getHits().length > 0) {
+                    batch.get(i).lastModified = getLastModified(hits.getAt(0));
+                }
+            }
+        } catch (final Exception e) {
+            logger.debug("Failed to retrieve lastModified.", e);
+        }
+    }
+
+    protected long getLastModified(final SearchHit hit) {
+        final SearchHitField lastModifiedField = hit.getFields().get(LAST_MODIFIED_FIELD);
+        if (lastModifiedField != null) {
+            final Date lastModified = ConversionUtil.convert(lastModifiedField.getValue(), Date.class);
+            if (lastModified != null) {
+                return lastModified.getTime();
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    public int size() {
+        return lastModifiedMap.size();
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public void setScrollSize(final int scrollSize) {
+        this.scrollSize = scrollSize;
+    }
+
+    public void setScrollKeepAlive(final TimeValue scrollKeepAlive) {
+        this.scrollKeepAlive = scrollKeepAlive;
+    }
+
+    public void setBatchSize(final int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setBatchWaitMillis(final long batchWaitMillis) {
+        this.batchWaitMillis = batchWaitMillis;
+    }
+
+    protected static class Lookup {
+        protected final String url;
+
+        protected volatile long lastModified = NOT_FOUND;
+
+        protected volatile boolean done = false;
+
+        protected Lookup(final String url) {
+            this.url = url;
+        }
+    }
+}
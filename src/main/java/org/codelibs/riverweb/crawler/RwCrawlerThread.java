@@ -3,12 +3,15 @@ package org.codelibs.riverweb.crawler;
 import java.util.Date;
 
 import org.codelibs.fess.crawler.CrawlerThread;
+import org.codelibs.fess.crawler.builder.RequestDataBuilder;
 import org.codelibs.fess.crawler.client.CrawlerClient;
 import org.codelibs.fess.crawler.client.EsClient;
+import org.codelibs.fess.crawler.entity.ResponseData;
 import org.codelibs.fess.crawler.entity.UrlQueue;
 import org.codelibs.riverweb.config.RiverConfig;
 import org.codelibs.riverweb.config.RiverConfigManager;
 import org.codelibs.riverweb.util.ConversionUtil;
+import org.codelibs.riverweb.util.HeaderUtils;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.SearchHitField;
@@ -21,30 +24,99 @@ import org.slf4j.LoggerFactory;
 public class RwCrawlerThread extends CrawlerThread {
     private static final Logger logger = LoggerFactory.getLogger(RwCrawlerThread.class);
 
+    @Override
+    protected CrawlerClient getClient(final String url) {
+        final CrawlerClient client = super.getClient(url);
+        if (client == null) {
+            return null;
+        }
+        final String sessionId = crawlerContext.getSessionId();
+        final RiverConfig riverConfig = SingletonLaContainer.getComponent(RiverConfigManager.class).get(sessionId);
+        // fetches of all sessions share the slots of the process
+        return new ScheduledCrawlerClient(client, SingletonLaContainer.getComponent(FetchScheduler.class), sessionId,
+                riverConfig.getIntervalController());
+    }
+
     @Override
     protected boolean isContentUpdated(final CrawlerClient client, final UrlQueue<?> urlQueue) {
         final RiverConfigManager riverConfigManager = SingletonLaContainer.getComponent(RiverConfigManager.class);
         final RiverConfig riverConfig = riverConfigManager.get(crawlerContext.getSessionId());
         if (riverConfig.isIncremental()) {
-            final EsClient esClient = SingletonLaContainer.getComponent(EsClient.class);
-            try {
-                final SearchResponse response = esClient.prepareSearch(riverConfig.getIndex()).setTypes(riverConfig.getType())
-                        .setQuery(QueryBuilders.termQuery("url", urlQueue.getUrl())).addField("lastModified")
-                        .addSort("lastModified", SortOrder.DESC).execute().actionGet();
-                final SearchHits hits = response.getHits();
-                if (hits.getTotalHits() > 0) {
-                    final SearchHitField lastModifiedField = hits.getAt(0).getFields().get("lastModified");
-                    if (lastModifiedField != null) {
-                        final Date lastModified = ConversionUtil.convert(lastModifiedField.getValue(), Date.class);
-                        if (lastModified != null) {
-                            urlQueue.setLastModified(lastModified.getTime());
+            final LastModifiedCache lastModifiedCache = riverConfig.getLastModifiedCache();
+            if (lastModifiedCache != null) {
+                final Long lastModified = lastModifiedCache.get(urlQueue.getUrl());
+                if (lastModified != null) {
+                    urlQueue.setLastModified(lastModified);
+                }
+                final String etag = lastModifiedCache.getEtag(urlQueue.getUrl());
+                if (etag == null && lastModified == null) {
+                    // not indexed yet
+                    return true;
+                }
+                return isContentUpdated(client, urlQueue, etag);
+            } else {
+                setLastModified(riverConfig, urlQueue);
+            }
+        }
+        return super.isContentUpdated(client, urlQueue);
+    }
+
+    /**
+     * Compares the stored etag or lastModified with the current one by a HEAD request.
+     *
+     * @param etag the stored etag, or null
+     * @return false if not modified
+     */
+    protected boolean isContentUpdated(final CrawlerClient client, final UrlQueue<?> urlQueue, final String etag) {
+        try (final ResponseData responseData =
+                client.execute(RequestDataBuilder.newRequestData().head().url(urlQueue.getUrl()).build())) {
+            if (responseData == null || responseData.getHttpStatusCode() != 200) {
+                return true;
+            }
+            if (etag != null) {
+                final String currentEtag = HeaderUtils.getHeader(responseData, HeaderUtils.ETAG);
+                if (currentEtag != null) {
+                    if (etag.equals(currentEtag)) {
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("Not modified: " + urlQueue.getUrl() + " (ETag: " + etag + ")");
                         }
+                        return false;
                     }
+                    return true;
+                }
+            }
+            final Long lastModified = urlQueue.getLastModified();
+            final Date currentLastModified = responseData.getLastModified();
+            if (lastModified != null && currentLastModified != null && currentLastModified.getTime() <= lastModified.longValue()) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Not modified: " + urlQueue.getUrl() + " (Last-Modified: " + currentLastModified + ")");
                 }
-            } catch (final Exception e) {
-                logger.debug("Failed to retrieve lastModified.", e);
+                return false;
             }
+        } catch (final Exception e) {
+            logger.debug("Failed to check " + urlQueue.getUrl(), e);
+        }
+        return true;
+    }
+
+    protected void setLastModified(final RiverConfig riverConfig, final UrlQueue<?> urlQueue) {
+        final EsClient esClient = SingletonLaContainer.getComponent(EsClient.class);
+        try {
+            final SearchResponse response = esClient.prepareSearch(riverConfig.getIndex()).setTypes(riverConfig.getType())
+                    .setQuery(QueryBuilders.termQuery("url", urlQueue.getUrl())).addField("lastModified")
+                    .addSort("lastModified", SortOrder.DESC).execute().actionGet();
+            final SearchHits hits = response.getHits();
+            if (hits.getTotalHits() > 0) {
+                final SearchHitField lastModifiedField = hits.getAt(0).getFields().get("lastModified");
+                if (lastModifiedField != null) {
+                    final Date lastModified = ConversionUtil.convert(lastModifiedField.getValue(), Date.class);
+                    if (lastModified != null) {
+                        urlQueue.setLastModified(lastModified.getTime());
+                    }
+                }
+            }
+        } catch (final Exception e) {
+            logger.debug("Failed to retrieve lastModified.", e);
         }
-        return super.isContentUpdated(client, urlQueue);
     }
 }
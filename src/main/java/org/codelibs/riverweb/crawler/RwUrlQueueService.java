@@ -0,0 +1,130 @@
+package org.codelibs.riverweb.crawler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codelibs.core.beans.util.BeanUtil;
+import org.codelibs.fess.crawler.entity.EsUrlQueue;
+import org.codelibs.fess.crawler.service.impl.EsUrlQueueService;
+import org.codelibs.riverweb.config.RiverConfig;
+import org.codelibs.riverweb.config.RiverConfigManager;
+import org.elasticsearch.action.index.IndexRequest.OpType;
+import org.lastaflute.di.core.SingletonLaContainer;
+
+public class RwUrlQueueService extends EsUrlQueueService {
+
+    @Override
+    public void add(final String sessionId, final String url) {
+        final ChildUrlFilter childUrlFilter = getChildUrlFilter(sessionId);
+        if (childUrlFilter != null) {
+            childUrlFilter.addSeen(url);
+        }
+
+        final EmbeddedUrlQueue embeddedUrlQueue = getEmbeddedUrlQueue(sessionId);
+        if (embeddedUrlQueue != null) {
+            final Map<String, Object> entry = new HashMap<>();
+            entry.put("sessionId", sessionId);
+            entry.put("method", "GET");
+            entry.put("url", url);
+            entry.put("depth", 0);
+            entry.put("createTime", System.currentTimeMillis());
+            embeddedUrlQueue.offer(url, entry);
+            return;
+        }
+
+        super.add(sessionId, url);
+        final UrlBloomFilter urlBloomFilter = getUrlBloomFilter(sessionId);
+        if (urlBloomFilter != null) {
+            urlBloomFilter.put(url);
+        }
+    }
+
+    @Override
+    public void offerAll(final String sessionId, final List<EsUrlQueue> newUrlQueueList) {
+        final ChildUrlFilter childUrlFilter = getChildUrlFilter(sessionId);
+        if (childUrlFilter != null) {
+            for (final EsUrlQueue urlQueue : newUrlQueueList) {
+                childUrlFilter.addSeen(urlQueue.getUrl());
+            }
+        }
+
+        final EmbeddedUrlQueue embeddedUrlQueue = getEmbeddedUrlQueue(sessionId);
+        if (embeddedUrlQueue != null) {
+            for (final EsUrlQueue urlQueue : newUrlQueueList) {
+                urlQueue.setSessionId(sessionId);
+                final Map<String, Object> entry = new HashMap<>();
+                BeanUtil.copyBeanToMap(urlQueue, entry, op -> op.excludeNull());
+                embeddedUrlQueue.offer(urlQueue.getUrl(), entry);
+            }
+            return;
+        }
+
+        final UrlBloomFilter urlBloomFilter = getUrlBloomFilter(sessionId);
+        if (urlBloomFilter == null) {
+            super.offerAll(sessionId, newUrlQueueList);
+            return;
+        }
+
+        final List<EsUrlQueue> newList = new ArrayList<>(newUrlQueueList.size());
+        final List<EsUrlQueue> checkList = new ArrayList<>();
+        for (final EsUrlQueue urlQueue : newUrlQueueList) {
+            final String url = urlQueue.getUrl();
+            if (urlBloomFilter.mightContain(url)) {
+                // might be queued or visited, so ask Elasticsearch
+                checkList.add(urlQueue);
+            } else {
+                urlQueue.setSessionId(sessionId);
+                newList.add(urlQueue);
+            }
+            urlBloomFilter.put(url);
+        }
+        if (!newList.isEmpty()) {
+            insertAll(newList, OpType.CREATE);
+        }
+        if (!checkList.isEmpty()) {
+            super.offerAll(sessionId, checkList);
+        }
+    }
+
+    @Override
+    public EsUrlQueue poll(final String sessionId) {
+        final EmbeddedUrlQueue embeddedUrlQueue = getEmbeddedUrlQueue(sessionId);
+        if (embeddedUrlQueue != null) {
+            final Map<String, Object> entry = embeddedUrlQueue.poll();
+            if (entry != null) {
+                final EsUrlQueue urlQueue = new EsUrlQueue();
+                BeanUtil.copyMapToBean(entry, urlQueue);
+                return urlQueue;
+            }
+            if (!embeddedUrlQueue.isIndexQueueEnabled()) {
+                // urls of this session are queued only in the embedded queue
+                return null;
+            }
+            // url queues of a resumed session
+            final EsUrlQueue urlQueue = super.poll(sessionId);
+            if (urlQueue == null) {
+                embeddedUrlQueue.setIndexQueueEnabled(false);
+            }
+            return urlQueue;
+        }
+        return super.poll(sessionId);
+    }
+
+    // a finished session has no config, and its queue is handled by EsUrlQueueService
+    protected EmbeddedUrlQueue getEmbeddedUrlQueue(final String sessionId) {
+        final RiverConfigManager riverConfigManager = SingletonLaContainer.getComponent(RiverConfigManager.class);
+        return riverConfigManager.find(sessionId).map(RiverConfig::getEmbeddedUrlQueue).orElse(null);
+    }
+
+    protected UrlBloomFilter getUrlBloomFilter(final String sessionId) {
+        final RiverConfigManager riverConfigManager = SingletonLaContainer.getComponent(RiverConfigManager.class);
+        return riverConfigManager.find(sessionId).map(RiverConfig::getUrlBloomFilter).orElse(null);
+    }
+
+    protected ChildUrlFilter getChildUrlFilter(final String sessionId) {
+        final RiverConfigManager riverConfigManager = SingletonLaContainer.getComponent(RiverConfigManager.class);
+        return riverConfigManager.find(sessionId).map(RiverConfig::getChildUrlFilter).orElse(null);
+    }
+}
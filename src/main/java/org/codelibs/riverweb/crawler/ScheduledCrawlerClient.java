@@ -0,0 +1,55 @@
+package org.codelibs.riverweb.crawler;
+
+import java.util.Map;
+
+import org.codelibs.fess.crawler.client.CrawlerClient;
+import org.codelibs.fess.crawler.entity.RequestData;
+import org.codelibs.fess.crawler.entity.ResponseData;
+import org.codelibs.riverweb.interval.WebRiverIntervalController;
+
+/**
+ * Executes requests of a session in slots given by FetchScheduler, at the
+ * rate of the host controlled by WebRiverIntervalController.
+ */
+public class ScheduledCrawlerClient implements CrawlerClient {
+    protected final CrawlerClient client;
+
+    protected final FetchScheduler fetchScheduler;
+
+    protected final String sessionId;
+
+    protected final WebRiverIntervalController intervalController;
+
+    public ScheduledCrawlerClient(final CrawlerClient client, final FetchScheduler fetchScheduler, final String sessionId,
+            final WebRiverIntervalController intervalController) {
+        this.client = client;
+        this.fetchScheduler = fetchScheduler;
+        this.sessionId = sessionId;
+        this.intervalController = intervalController;
+    }
+
+    @Override
+    public ResponseData execute(final RequestData request) {
+        final String url = request.getUrl();
+        if (intervalController != null) {
+            intervalController.delayForHost(url);
+        }
+        final FetchScheduler.Slot slot = fetchScheduler.acquire(sessionId, url);
+        final long startTime = System.currentTimeMillis();
+        ResponseData responseData = null;
+        try {
+            responseData = client.execute(request);
+            return responseData;
+        } finally {
+            slot.release();
+            if (intervalController != null) {
+                intervalController.updateHostRate(url, responseData, System.currentTimeMillis() - startTime);
+            }
+        }
+    }
+
+    @Override
+    public void setInitParameterMap(final Map<String, Object> params) {
+        client.setInitParameterMap(params);
+    }
+}
@@ -0,0 +1,96 @@
+package org.codelibs.riverweb.crawler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.io.stream.InputStreamStreamInput;
+import org.elasticsearch.common.io.stream.OutputStreamStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.util.BloomFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bloom filter of urls queued in a session.
+ * A url not in this filter is new to the session, so the existence checks
+ * in Elasticsearch can be skipped. The filter can be saved to a file and
+ * loaded by a resumed session.
+ */
+public class UrlBloomFilter {
+    private static final Logger logger = LoggerFactory.getLogger(UrlBloomFilter.class);
+
+    protected final BloomFilter bloomFilter;
+
+    protected final Path path;
+
+    protected UrlBloomFilter(final BloomFilter bloomFilter, final Path path) {
+        this.bloomFilter = bloomFilter;
+        this.path = path;
+    }
+
+    /**
+     * Creates a bloom filter, or loads it if the file exists.
+     *
+     * @param path file to load and save the filter, or null
+     * @param expectedInsertions expected number of urls
+     * @param fpp false positive probability
+     * @return bloom filter
+     */
+    public static UrlBloomFilter create(final Path path, final int expectedInsertions, final double fpp) {
+        if (path != null && Files.exists(path)) {
+            try (StreamInput in = new InputStreamStreamInput(new BufferedInputStream(Files.newInputStream(path)))) {
+                final BloomFilter bloomFilter = BloomFilter.readFrom(in);
+                if (logger.isInfoEnabled()) {
+                    logger.info("Loaded a bloom filter from " + path + " (" + bloomFilter.getSizeInBytes() + " bytes)");
+                }
+                return new UrlBloomFilter(bloomFilter, path);
+            } catch (final IOException e) {
+                logger.warn("Failed to load a bloom filter from " + path, e);
+            }
+        }
+        return new UrlBloomFilter(BloomFilter.create(expectedInsertions, fpp), path);
+    }
+
+    public synchronized boolean mightContain(final String url) {
+        return bloomFilter.mightContain(new BytesRef(url));
+    }
+
+    public synchronized void put(final String url) {
+        bloomFilter.put(new BytesRef(url));
+    }
+
+    /**
+     * Saves this filter to the file if the path is specified.
+     */
+    public synchronized void save() {
+        if (path == null) {
+            return;
+        }
+        try {
+            final Path parent = path.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            final Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+            try (StreamOutput out = new OutputStreamStreamOutput(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+                BloomFilter.writeTo(bloomFilter, out);
+            }
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+            if (logger.isInfoEnabled()) {
+                logger.info("Saved a bloom filter to " + path);
+            }
+        } catch (final IOException e) {
+            logger.warn("Failed to save a bloom filter to " + path, e);
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+}
@@ -0,0 +1,241 @@
+package org.codelibs.riverweb.entity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.codelibs.riverweb.selector.CompiledSelector;
+import org.codelibs.riverweb.selector.ElementQueries;
+import org.codelibs.riverweb.selector.ElementQuery;
+import org.codelibs.riverweb.selector.SelectorCache;
+import org.codelibs.riverweb.selector.SelectorTrie;
+import org.codelibs.riverweb.util.SettingsUtils;
+
+/**
+ * Extraction rule for a property, compiled from a "properties" entry of a
+ * scraping rule so that no settings are parsed while crawling.
+ */
+public class PropertyRule {
+    public static final String ARRAY_PROPERTY_PREFIX = "[]";
+
+    public static final String[] QUERY_TYPES = new String[] { "className", "data", "html", "id", "ownText", "tagName", "text", "val",
+            "nodeName", "outerHtml", "attr", "baseUri", "absUrl" };
+
+    private static final long DEFAULT_MAX_ATTACHMENT_SIZE = 1000 * 1000; // 1M
+
+    private static final String VALUE_PROP_NAME = "value";
+
+    private static final String TYPE_PROP_NAME = "type";
+
+    private static final String SCRIPT_PROP_NAME = "script";
+
+    private static final String ARGS_PROP_NAME = "args";
+
+    private static final String IS_ARRAY_PROP_NAME = "is_array";
+
+    private static final String IS_DISTINCT_PROP_NAME = "is_distinct";
+
+    private static final String IS_CHILD_URL_PROP_NAME = "is_child";
+
+    private static final String TRIM_SPACES_PROP_NAME = "trim_spaces";
+
+    private final String name;
+
+    private final String[] path;
+
+    private final Map<String, Object> params;
+
+    private final boolean trimSpaces;
+
+    private final boolean array;
+
+    private final boolean childUrl;
+
+    private final boolean distinct;
+
+    private final List<String> values;
+
+    private final boolean data;
+
+    private final boolean source;
+
+    private final long maxFileSize;
+
+    private final String queryType;
+
+    private final List<String> queries;
+
+    private final CompiledSelector[] selectors;
+
+    private final int selectorNodeId;
+
+    private final boolean nullPadding;
+
+    private final Object[] args;
+
+    private final ElementQuery elementQuery;
+
+    private final ScriptInfo scriptInfo;
+
+    public PropertyRule(final String name, final Map<String, Object> params, final SelectorTrie selectorTrie) {
+        this.name = name;
+        path = name.split("\\.");
+        this.params = params;
+        trimSpaces = SettingsUtils.get(params, TRIM_SPACES_PROP_NAME, Boolean.FALSE).booleanValue();
+        array = SettingsUtils.get(params, IS_ARRAY_PROP_NAME, Boolean.FALSE).booleanValue();
+        childUrl = SettingsUtils.get(params, IS_CHILD_URL_PROP_NAME, Boolean.FALSE).booleanValue();
+        distinct = SettingsUtils.get(params, IS_DISTINCT_PROP_NAME, Boolean.FALSE).booleanValue();
+
+        final Object value = SettingsUtils.get(params, VALUE_PROP_NAME, null);
+        final String type = SettingsUtils.get(params, TYPE_PROP_NAME, null);
+        if (value != null) {
+            final List<String> list = new ArrayList<>();
+            if (value instanceof String) {
+                list.add(trimSpaces(value.toString(), trimSpaces));
+            } else if (value instanceof List) {
+                @SuppressWarnings("unchecked")
+                final List<Object> valueList = (List<Object>) value;
+                for (final Object obj : valueList) {
+                    list.add(trimSpaces(obj.toString(), trimSpaces));
+                }
+            }
+            values = Collections.unmodifiableList(list);
+            data = false;
+            source = false;
+        } else {
+            values = null;
+            data = "data".equals(type) || "attachment".equals(type);
+            source = !data && "source".equals(type);
+        }
+        maxFileSize = SettingsUtils.get(params, "maxFileSize", DEFAULT_MAX_ATTACHMENT_SIZE);
+
+        String selectedQueryType = null;
+        List<String> queryList = null;
+        boolean padding = false;
+        for (final String qt : QUERY_TYPES) {
+            final Object queryObj = SettingsUtils.get(params, qt, null);
+            if (queryObj instanceof String) {
+                queryList = Collections.singletonList(queryObj.toString());
+            } else if (queryObj instanceof List) {
+                @SuppressWarnings("unchecked")
+                final List<String> list = (List<String>) queryObj;
+                queryList = Collections.unmodifiableList(new ArrayList<>(list));
+                padding = name.startsWith(ARRAY_PROPERTY_PREFIX);
+            }
+            if (queryList != null) {
+                selectedQueryType = qt;
+                break;
+            }
+        }
+        queryType = selectedQueryType;
+        queries = queryList;
+        if (queryList != null) {
+            selectors = new CompiledSelector[queryList.size()];
+            for (int i = 0; i < selectors.length; i++) {
+                selectors[i] = SelectorCache.get(queryList.get(i));
+            }
+        } else {
+            selectors = null;
+        }
+        nullPadding = padding;
+        selectorNodeId = selectors != null ? selectorTrie.add(selectors, nullPadding) : -1;
+
+        final List<Object> argList = SettingsUtils.get(params, ARGS_PROP_NAME, Collections.emptyList());
+        args = argList.toArray(new Object[argList.size()]);
+        elementQuery = queryType != null ? ElementQueries.get(queryType, args) : null;
+
+        scriptInfo = ScriptInfo.create(SettingsUtils.get(params, SCRIPT_PROP_NAME, null));
+    }
+
+    protected static String trimSpaces(final String value, final boolean trimSpaces) {
+        if (value == null) {
+            return null;
+        }
+        if (trimSpaces) {
+            return value.replaceAll("\\s+", " ").trim();
+        }
+        return value;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String[] getPath() {
+        return path;
+    }
+
+    public Map<String, Object> getParams() {
+        return params;
+    }
+
+    public boolean isTrimSpaces() {
+        return trimSpaces;
+    }
+
+    public boolean isArray() {
+        return array;
+    }
+
+    public boolean isChildUrl() {
+        return childUrl;
+    }
+
+    public boolean isDistinct() {
+        return distinct;
+    }
+
+    public List<String> getValues() {
+        return values;
+    }
+
+    public boolean isData() {
+        return data;
+    }
+
+    public boolean isSource() {
+        return source;
+    }
+
+    public long getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    public String getQueryType() {
+        return queryType;
+    }
+
+    public List<String> getQueries() {
+        return queries;
+    }
+
+    public CompiledSelector[] getSelectors() {
+        return selectors;
+    }
+
+    /**
+     * Returns a node id in the selector trie of the scraping rule.
+     *
+     * @return node id, or -1 if no queries
+     */
+    public int getSelectorNodeId() {
+        return selectorNodeId;
+    }
+
+    public boolean isNullPadding() {
+        return nullPadding;
+    }
+
+    public Object[] getArgs() {
+        return args;
+    }
+
+    public ElementQuery getElementQuery() {
+        return elementQuery;
+    }
+
+    public ScriptInfo getScriptInfo() {
+        return scriptInfo;
+    }
+}
@@ -1,15 +1,22 @@
 package org.codelibs.riverweb.entity;
 
 import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 
 import org.codelibs.core.beans.BeanDesc;
 import org.codelibs.core.beans.factory.BeanDescFactory;
 import org.codelibs.core.lang.FieldUtil;
 import org.codelibs.fess.crawler.entity.ResponseData;
+import org.codelibs.riverweb.selector.CompiledSelector;
+import org.codelibs.riverweb.selector.SelectorCache;
+import org.codelibs.riverweb.selector.SelectorTrie;
 import org.codelibs.riverweb.util.SettingsUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,12 +24,38 @@ import org.slf4j.LoggerFactory;
 public class ScrapingRule {
     private static final Logger logger = LoggerFactory.getLogger(ScrapingRule.class);
 
+    // getters for pattern fields, and other fields are accessed by reflection
+    private static final Map<String, Function<ResponseData, Object>> FIELD_ACCESSOR_MAP = new HashMap<>();
+
+    static {
+        FIELD_ACCESSOR_MAP.put("url", ResponseData::getUrl);
+        FIELD_ACCESSOR_MAP.put("parentUrl", ResponseData::getParentUrl);
+        FIELD_ACCESSOR_MAP.put("method", ResponseData::getMethod);
+        FIELD_ACCESSOR_MAP.put("mimeType", ResponseData::getMimeType);
+        FIELD_ACCESSOR_MAP.put("charSet", ResponseData::getCharSet);
+        FIELD_ACCESSOR_MAP.put("httpStatusCode", ResponseData::getHttpStatusCode);
+        FIELD_ACCESSOR_MAP.put("contentLength", ResponseData::getContentLength);
+        FIELD_ACCESSOR_MAP.put("sessionId", ResponseData::getSessionId);
+        FIELD_ACCESSOR_MAP.put("ruleId", ResponseData::getRuleId);
+    }
+
     final Map<String, Pattern> patternMap = new LinkedHashMap<String, Pattern>();
 
     final Map<String, Object> settingMap;
 
     final Map<String, Map<String, Object>> ruleMap;
 
+    final List<PropertyRule> propertyRuleList;
+
+    final SelectorTrie selectorTrie = new SelectorTrie();
+
+    final boolean htmlParsed;
+
+    final boolean childUrlProperty;
+
+    // compiled selector -> url attribute to extract child urls from a parsed document
+    final Map<CompiledSelector, String> childUrlSelectorMap;
+
     public ScrapingRule(final Map<String, Object> settingMap, final Map<String, Object> paramPatternMap,
             final Map<String, Map<String, Object>> ruleMap) {
         if (settingMap == null) {
@@ -31,6 +64,14 @@ public class ScrapingRule {
             this.settingMap = settingMap;
         }
         this.ruleMap = ruleMap;
+        final List<PropertyRule> list = new ArrayList<>(ruleMap.size());
+        for (final Map.Entry<String, Map<String, Object>> entry : ruleMap.entrySet()) {
+            list.add(new PropertyRule(entry.getKey(), entry.getValue(), selectorTrie));
+        }
+        propertyRuleList = Collections.unmodifiableList(list);
+        childUrlProperty = list.stream().anyMatch(PropertyRule::isChildUrl);
+        htmlParsed = getSetting("html", Boolean.TRUE).booleanValue();
+        childUrlSelectorMap = createChildUrlSelectorMap(getSetting("childUrlSelectors", null));
         for (final Map.Entry<String, Object> entry : paramPatternMap.entrySet()) {
             final Object value = entry.getValue();
             if (value instanceof String) {
@@ -42,16 +83,37 @@ public class ScrapingRule {
         }
     }
 
+    protected static Map<CompiledSelector, String> createChildUrlSelectorMap(final Object value) {
+        if (Boolean.TRUE.equals(value)) {
+            final Map<CompiledSelector, String> selectorMap = new LinkedHashMap<>();
+            selectorMap.put(SelectorCache.get("a[href]"), "href");
+            selectorMap.put(SelectorCache.get("area[href]"), "href");
+            selectorMap.put(SelectorCache.get("frame[src]"), "src");
+            selectorMap.put(SelectorCache.get("iframe[src]"), "src");
+            selectorMap.put(SelectorCache.get("img[src]"), "src");
+            selectorMap.put(SelectorCache.get("link[href]"), "href");
+            selectorMap.put(SelectorCache.get("script[src]"), "src");
+            return Collections.unmodifiableMap(selectorMap);
+        } else if (value instanceof Map) {
+            final Map<CompiledSelector, String> selectorMap = new LinkedHashMap<>();
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (entry.getKey() != null && entry.getValue() != null) {
+                    selectorMap.put(SelectorCache.get(entry.getKey().toString()), entry.getValue().toString());
+                }
+            }
+            return Collections.unmodifiableMap(selectorMap);
+        }
+        return null;
+    }
+
     public boolean matches(final ResponseData responseData) {
         if (patternMap.isEmpty()) {
             return false;
         }
 
         try {
-            final BeanDesc beanDesc = BeanDescFactory.getBeanDesc(responseData.getClass());
             for (final Map.Entry<String, Pattern> entry : patternMap.entrySet()) {
-                final Field field = beanDesc.getFieldDesc(entry.getKey()).getField();
-                final Object value = FieldUtil.get(field, responseData);
+                final Object value = getFieldValue(responseData, entry.getKey());
                 if (value == null || !entry.getValue().matcher(value.toString()).matches()) {
                     return false;
                 }
@@ -63,10 +125,46 @@ public class ScrapingRule {
         }
     }
 
+    protected static Object getFieldValue(final ResponseData responseData, final String name) {
+        final Function<ResponseData, Object> accessor = FIELD_ACCESSOR_MAP.get(name);
+        if (accessor != null) {
+            return accessor.apply(responseData);
+        }
+        final BeanDesc beanDesc = BeanDescFactory.getBeanDesc(responseData.getClass());
+        final Field field = beanDesc.getFieldDesc(name).getField();
+        return FieldUtil.get(field, responseData);
+    }
+
     public Map<String, Map<String, Object>> getRuleMap() {
         return ruleMap;
     }
 
+    public List<PropertyRule> getPropertyRuleList() {
+        return propertyRuleList;
+    }
+
+    public SelectorTrie getSelectorTrie() {
+        return selectorTrie;
+    }
+
+    public boolean isHtmlParsed() {
+        return htmlParsed;
+    }
+
+    /**
+     * @return a map of compiled selector and url attribute for child urls, or null if links are extracted by HtmlTransformer
+     */
+    public Map<CompiledSelector, String> getChildUrlSelectorMap() {
+        return childUrlSelectorMap;
+    }
+
+    /**
+     * @return true if child urls are taken from properties
+     */
+    public boolean hasChildUrlProperty() {
+        return childUrlProperty;
+    }
+
     public <T, V> T getSetting(final String key, final T defaultValue) {
         return SettingsUtils.get(settingMap, key, defaultValue);
     }
@@ -0,0 +1,119 @@
+package org.codelibs.riverweb.entity;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.codelibs.fess.crawler.entity.ResponseData;
+
+/**
+ * Finds the first scraping rule which matches a response.
+ * Rules are indexed by a literal prefix of their url pattern in a trie, so
+ * only rules whose prefix matches the url are checked by regex.
+ */
+public class ScrapingRuleMatcher {
+    protected static final String URL_FIELD = "url";
+
+    protected final List<ScrapingRule> scrapingRuleList = new ArrayList<>();
+
+    protected final Node root = new Node();
+
+    public synchronized void add(final ScrapingRule scrapingRule) {
+        final int index = scrapingRuleList.size();
+        scrapingRuleList.add(scrapingRule);
+
+        final Pattern pattern = scrapingRule.patternMap.get(URL_FIELD);
+        Node node = root;
+        if (pattern != null) {
+            final String prefix = getLiteralPrefix(pattern.pattern());
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.children.computeIfAbsent(prefix.charAt(i), c -> new Node());
+            }
+        }
+        node.ruleSet.set(index);
+    }
+
+    public ScrapingRule match(final ResponseData responseData) {
+        final BitSet candidates = new BitSet();
+        Node node = root;
+        candidates.or(node.ruleSet);
+        final String url = responseData.getUrl();
+        if (url != null) {
+            for (int i = 0; i < url.length(); i++) {
+                node = node.children.get(url.charAt(i));
+                if (node == null) {
+                    break;
+                }
+                candidates.or(node.ruleSet);
+            }
+        }
+        // preserve the order of rules
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            final ScrapingRule scrapingRule = scrapingRuleList.get(i);
+            if (scrapingRule.matches(responseData)) {
+                return scrapingRule;
+            }
+        }
+        return null;
+    }
+
+    public List<ScrapingRule> getScrapingRuleList() {
+        return Collections.unmodifiableList(scrapingRuleList);
+    }
+
+    /**
+     * Returns a literal string which all strings matched by the regex start with.
+     *
+     * @param regex regular expression
+     * @return literal prefix, or an empty string
+     */
+    protected static String getLiteralPrefix(final String regex) {
+        if (regex.indexOf('|') >= 0) {
+            // an alternative has another prefix
+            return "";
+        }
+        final StringBuilder buf = new StringBuilder();
+        int i = regex.startsWith("^") ? 1 : 0;
+        while (i < regex.length()) {
+            final char c = regex.charAt(i);
+            final char literal;
+            final int next;
+            if (c == '\\') {
+                if (i + 1 >= regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    // a character class such as \d, or a quote such as \Q
+                    break;
+                }
+                literal = regex.charAt(i + 1);
+                next = i + 2;
+            } else if ("[](){}.*+?^$".indexOf(c) >= 0) {
+                break;
+            } else {
+                literal = c;
+                next = i + 1;
+            }
+            if (next < regex.length()) {
+                final char quantifier = regex.charAt(next);
+                if (quantifier == '*' || quantifier == '?' || quantifier == '{') {
+                    // the character is optional
+                    break;
+                } else if (quantifier == '+') {
+                    buf.append(literal);
+                    break;
+                }
+            }
+            buf.append(literal);
+            i = next;
+        }
+        return buf.toString();
+    }
+
+    protected static class Node {
+        protected final Map<Character, Node> children = new HashMap<>();
+
+        protected final BitSet ruleSet = new BitSet();
+    }
+}
@@ -0,0 +1,94 @@
+package org.codelibs.riverweb.entity;
+
+import java.util.List;
+import java.util.Map;
+
+import org.codelibs.riverweb.WebRiverConstants;
+import org.codelibs.riverweb.util.SettingsUtils;
+import org.elasticsearch.script.ScriptService.ScriptType;
+
+public class ScriptInfo {
+    private static final String SCRIPT_PROP_NAME = "script";
+
+    private final String script;
+
+    private final String lang;
+
+    private final ScriptType scriptType;
+
+    private final boolean batch;
+
+    public ScriptInfo(final String script) {
+        this(script, WebRiverConstants.DEFAULT_SCRIPT_LANG, ScriptType.INLINE);
+    }
+
+    public ScriptInfo(final String script, final String lang, final ScriptType scriptType) {
+        this(script, lang, scriptType, false);
+    }
+
+    public ScriptInfo(final String script, final String lang, final ScriptType scriptType, final boolean batch) {
+        this.script = script;
+        this.lang = lang;
+        this.scriptType = scriptType;
+        this.batch = batch;
+    }
+
+    /**
+     * Creates a script info from "script" value of a property.
+     * The value is a script string, a list of script strings or a map of
+     * {"script":"...","lang":"...","script_type":"inline|file|indexed","batch":true|false}.
+     *
+     * @param value "script" value
+     * @return script info, or null if no script
+     */
+    public static ScriptInfo create(final Object value) {
+        if (value == null) {
+            return null;
+        } else if (value instanceof String) {
+            return new ScriptInfo(value.toString());
+        } else if (value instanceof List) {
+            @SuppressWarnings("unchecked")
+            final List<CharSequence> list = (List<CharSequence>) value;
+            return new ScriptInfo(String.join("", list));
+        } else if (value instanceof Map) {
+            @SuppressWarnings("unchecked")
+            final Map<String, Object> scriptMap = (Map<String, Object>) value;
+            final String script = SettingsUtils.get(scriptMap, SCRIPT_PROP_NAME);
+            if (script == null) {
+                return null;
+            }
+            return new ScriptInfo(script, SettingsUtils.get(scriptMap, "lang", WebRiverConstants.DEFAULT_SCRIPT_LANG),
+                    getScriptType(SettingsUtils.get(scriptMap, "script_type", "inline")),
+                    SettingsUtils.get(scriptMap, "batch", Boolean.FALSE).booleanValue());
+        }
+        return null;
+    }
+
+    public static ScriptType getScriptType(final String scriptTypeValue) {
+        if (ScriptType.FILE.toString().equalsIgnoreCase(scriptTypeValue)) {
+            return ScriptType.FILE;
+        } else if (ScriptType.INDEXED.toString().equalsIgnoreCase(scriptTypeValue)) {
+            return ScriptType.INDEXED;
+        }
+        return ScriptType.INLINE;
+    }
+
+    public String getScript() {
+        return script;
+    }
+
+    public String getLang() {
+        return lang;
+    }
+
+    public ScriptType getScriptType() {
+        return scriptType;
+    }
+
+    /**
+     * @return true if an array property is passed to the script at once
+     */
+    public boolean isBatch() {
+        return batch;
+    }
+}
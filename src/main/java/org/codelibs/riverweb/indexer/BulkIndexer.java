@@ -0,0 +1,196 @@
+package org.codelibs.riverweb.indexer;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codelibs.riverweb.util.SettingsUtils;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Buffers index requests of a crawl session and sends them as bulk requests.
+ * A bulk request is sent when the number of documents, the byte size or the
+ * age of the buffer exceeds its limit. Callers are blocked only when all
+ * concurrent bulk requests are in flight and the buffer is full.
+ */
+public class BulkIndexer {
+    private static final Logger logger = LoggerFactory.getLogger(BulkIndexer.class);
+
+    protected static final int DEFAULT_BULK_ACTIONS = 1000;
+
+    protected static final String DEFAULT_BULK_SIZE = "5mb";
+
+    protected static final String DEFAULT_FLUSH_INTERVAL = "5s";
+
+    protected static final int DEFAULT_CONCURRENT_REQUESTS = 1;
+
+    protected static final String DEFAULT_CLOSE_TIMEOUT = "1m";
+
+    protected final Client client;
+
+    protected final BulkProcessor bulkProcessor;
+
+    protected final TimeValue closeTimeout;
+
+    protected final Set<String> indexSet = ConcurrentHashMap.newKeySet();
+
+    protected final AtomicLong successCount = new AtomicLong();
+
+    protected final AtomicLong failureCount = new AtomicLong();
+
+    protected volatile boolean closed = false;
+
+    /**
+     * Creates a bulk indexer from "bulk" settings:
+     * {"actions":1000,"size":"5mb","flush_interval":"5s","concurrent_requests":1,"close_timeout":"1m"}
+     *
+     * @param client Elasticsearch client
+     * @param name name of this indexer, such as a session id
+     * @param bulkSettings bulk settings
+     */
+    public BulkIndexer(final Client client, final String name, final Map<String, Object> bulkSettings) {
+        this.client = client;
+        final int bulkActions = SettingsUtils.get(bulkSettings, "actions", DEFAULT_BULK_ACTIONS);
+        final ByteSizeValue bulkSize = getByteSizeValue(bulkSettings, "size", DEFAULT_BULK_SIZE);
+        final TimeValue flushInterval = getTimeValue(bulkSettings, "flush_interval", DEFAULT_FLUSH_INTERVAL);
+        final int concurrentRequests = SettingsUtils.get(bulkSettings, "concurrent_requests", DEFAULT_CONCURRENT_REQUESTS);
+        closeTimeout = getTimeValue(bulkSettings, "close_timeout", DEFAULT_CLOSE_TIMEOUT);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("BulkIndexer(" + name + "): actions: " + bulkActions + ", size: " + bulkSize + ", flush_interval: " + flushInterval
+                    + ", concurrent_requests: " + concurrentRequests);
+        }
+
+        bulkProcessor = BulkProcessor.builder(client, new BulkListener()).setName(name).setBulkActions(bulkActions).setBulkSize(bulkSize)
+                .setFlushInterval(flushInterval).setConcurrentRequests(concurrentRequests).build();
+    }
+
+    public void add(final IndexRequest request) {
+        if (closed) {
+            // a late document, such as from a stage which did not finish in time
+            client.index(request).actionGet();
+            return;
+        }
+        indexSet.add(request.index());
+        try {
+            bulkProcessor.add(request);
+        } catch (final IllegalStateException e) {
+            // closed by another thread
+            client.index(request).actionGet();
+        }
+    }
+
+    public void delete(final DeleteRequest request) {
+        if (closed) {
+            client.delete(request).actionGet();
+            return;
+        }
+        indexSet.add(request.index());
+        try {
+            bulkProcessor.add(request);
+        } catch (final IllegalStateException e) {
+            client.delete(request).actionGet();
+        }
+    }
+
+    public void flush() {
+        bulkProcessor.flush();
+    }
+
+    /**
+     * Sends buffered requests, waits for in-flight bulk requests and refreshes
+     * indices written by this indexer. Requests added after closing are sent one by one.
+     */
+    public void close() {
+        closed = true;
+        try {
+            if (!bulkProcessor.awaitClose(closeTimeout.millis(), TimeUnit.MILLISECONDS)) {
+                logger.warn("Bulk requests did not finish in " + closeTimeout);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while waiting for bulk requests.", e);
+        }
+
+        if (!indexSet.isEmpty()) {
+            try {
+                client.admin().indices().prepareRefresh(indexSet.toArray(new String[indexSet.size()])).execute().actionGet();
+            } catch (final Exception e) {
+                logger.warn("Failed to refresh " + indexSet, e);
+            }
+        }
+
+        logger.info("Indexed documents: " + successCount.get() + ", failures: " + failureCount.get());
+    }
+
+    public long getSuccessCount() {
+        return successCount.get();
+    }
+
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    protected static ByteSizeValue getByteSizeValue(final Map<String, Object> settings, final String key, final String defaultValue) {
+        final Object value = SettingsUtils.get(settings, key, defaultValue);
+        if (value instanceof Number) {
+            return new ByteSizeValue(((Number) value).longValue());
+        }
+        return ByteSizeValue.parseBytesSizeValue(value.toString(), key);
+    }
+
+    protected static TimeValue getTimeValue(final Map<String, Object> settings, final String key, final String defaultValue) {
+        final Object value = SettingsUtils.get(settings, key, defaultValue);
+        if (value instanceof Number) {
+            return TimeValue.timeValueMillis(((Number) value).longValue());
+        }
+        return TimeValue.parseTimeValue(value.toString(), null, key);
+    }
+
+    protected class BulkListener implements BulkProcessor.Listener {
+
+        @Override
+        public void beforeBulk(final long executionId, final BulkRequest request) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Sending bulk request[" + executionId + "]: " + request.numberOfActions() + " actions, "
+                        + request.estimatedSizeInBytes() + " bytes");
+            }
+        }
+
+        @Override
+        public void afterBulk(final long executionId, final BulkRequest request, final BulkResponse response) {
+            long failures = 0;
+            for (final BulkItemResponse item : response.getItems()) {
+                if (item.isFailed()) {
+                    failures++;
+                    logger.warn("Could not write a content into index: " + item.getIndex() + "/" + item.getType() + "/" + item.getId()
+                            + " : " + item.getFailureMessage());
+                }
+            }
+            failureCount.addAndGet(failures);
+            successCount.addAndGet(response.getItems().length - failures);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Bulk request[" + executionId + "] finished in " + response.getTookInMillis() + "ms: " + failures
+                        + " failures");
+            }
+        }
+
+        @Override
+        public void afterBulk(final long executionId, final BulkRequest request, final Throwable failure) {
+            failureCount.addAndGet(request.numberOfActions());
+            logger.warn("Could not write " + request.numberOfActions() + " contents into index.", failure);
+        }
+    }
+}
@@ -1,8 +1,52 @@
 package org.codelibs.riverweb.interval;
 
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.codelibs.fess.crawler.entity.ResponseData;
+import org.codelibs.fess.crawler.exception.CrawlingAccessException;
 import org.codelibs.fess.crawler.interval.impl.DefaultIntervalController;
+import org.codelibs.riverweb.util.HeaderUtils;
+import org.codelibs.riverweb.util.SettingsUtils;
+import org.codelibs.riverweb.util.UrlUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * Interval controller of River Web.
+ * If the rate control is enabled, requests to each host are limited by a
+ * token bucket whose rate is increased additively while the host responds
+ * fast, and decreased multiplicatively by slow, 429 or 503 responses.
+ */
 public class WebRiverIntervalController extends DefaultIntervalController {
+    private static final Logger logger = LoggerFactory.getLogger(WebRiverIntervalController.class);
+
+    protected static final String RETRY_AFTER = "Retry-After";
+
+    protected final Map<String, HostRate> hostRateMap = new ConcurrentHashMap<>();
+
+    protected boolean rateControlEnabled = false;
+
+    // requests per second
+    protected double initialRate = 1d;
+
+    protected double minRate = 0.1d;
+
+    protected double maxRate = 10d;
+
+    protected double rateIncrease = 0.5d;
+
+    protected double rateDecreaseFactor = 0.5d;
+
+    protected double burst = 1d;
+
+    protected long latencyThreshold = 2000L;
+
+    protected long maxRetryAfter = 10 * 60 * 1000L;
+
     public void setDelayMillisForWaitingNewUrl(final long delayMillisForWaitingNewUrl) {
         this.delayMillisForWaitingNewUrl = delayMillisForWaitingNewUrl;
     }
@@ -10,4 +54,167 @@ public class WebRiverIntervalController extends DefaultIntervalController {
     public long getDelayMillisForWaitingNewUrl() {
         return delayMillisForWaitingNewUrl;
     }
+
+    /**
+     * Enables the per-host rate control by "rate_control" settings:
+     * {"initial_rate":1,"min_rate":0.1,"max_rate":10,"increase":0.5,"decrease":0.5,"burst":1,"latency_threshold":2000}
+     *
+     * @param settings rate control settings, or null for defaults
+     */
+    public void setRateControlSettings(final Map<String, Object> settings) {
+        minRate = SettingsUtils.get(settings, "min_rate", minRate);
+        maxRate = Math.max(SettingsUtils.get(settings, "max_rate", maxRate), minRate);
+        initialRate = Math.min(Math.max(SettingsUtils.get(settings, "initial_rate", initialRate), minRate), maxRate);
+        rateIncrease = SettingsUtils.get(settings, "increase", rateIncrease);
+        rateDecreaseFactor = SettingsUtils.get(settings, "decrease", rateDecreaseFactor);
+        burst = Math.max(SettingsUtils.get(settings, "burst", burst), 1d);
+        latencyThreshold = SettingsUtils.get(settings, "latency_threshold", latencyThreshold);
+        maxRetryAfter = SettingsUtils.get(settings, "max_retry_after", maxRetryAfter);
+        rateControlEnabled = true;
+    }
+
+    public boolean isRateControlEnabled() {
+        return rateControlEnabled;
+    }
+
+    /**
+     * Waits until a request to the host of the url is allowed.
+     *
+     * @param url url to be requested
+     */
+    public void delayForHost(final String url) {
+        if (!rateControlEnabled) {
+            return;
+        }
+        final long waitMillis = getHostRate(url).reserve(System.currentTimeMillis());
+        if (waitMillis > 0) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Waiting " + waitMillis + "ms for " + url);
+            }
+            try {
+                Thread.sleep(waitMillis);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CrawlingAccessException("Interrupted while waiting for " + url, e);
+            }
+        }
+    }
+
+    /**
+     * Updates the rate of the host by the response.
+     *
+     * @param url requested url
+     * @param responseData response, or null if the request failed
+     * @param latency elapsed time of the request in milliseconds
+     */
+    public void updateHostRate(final String url, final ResponseData responseData, final long latency) {
+        if (!rateControlEnabled) {
+            return;
+        }
+        final HostRate hostRate = getHostRate(url);
+        final long now = System.currentTimeMillis();
+        if (responseData == null) {
+            hostRate.decrease(now, 0L);
+            return;
+        }
+        final int status = responseData.getHttpStatusCode();
+        if (status == 429 || status == 503) {
+            hostRate.decrease(now, parseRetryAfter(HeaderUtils.getHeader(responseData, RETRY_AFTER), now));
+        } else if (latency > latencyThreshold || status >= 500) {
+            hostRate.decrease(now, 0L);
+        } else {
+            hostRate.increase();
+        }
+    }
+
+    /**
+     * @return current rates (requests per second) of hosts
+     */
+    public Map<String, Double> getHostRates() {
+        final Map<String, Double> rateMap = new TreeMap<>();
+        hostRateMap.forEach((host, hostRate) -> rateMap.put(host, hostRate.getRate()));
+        return rateMap;
+    }
+
+    protected HostRate getHostRate(final String url) {
+        return hostRateMap.computeIfAbsent(UrlUtils.getHost(url), h -> new HostRate(initialRate, burst));
+    }
+
+    /**
+     * @return milliseconds to wait, or 0
+     */
+    protected long parseRetryAfter(final String value, final long now) {
+        if (value == null) {
+            return 0L;
+        }
+        long millis = 0L;
+        try {
+            millis = Long.parseLong(value.trim()) * 1000L;
+        } catch (final NumberFormatException e) {
+            try {
+                millis = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli() - now;
+            } catch (final Exception e2) {
+                logger.debug("Invalid Retry-After: " + value, e2);
+            }
+        }
+        return Math.min(Math.max(millis, 0L), maxRetryAfter);
+    }
+
+    protected class HostRate {
+        protected double rate;
+
+        protected final double capacity;
+
+        protected double tokens;
+
+        protected long lastRefill;
+
+        // no request until this time
+        protected long blockedUntil = 0L;
+
+        protected HostRate(final double rate, final double capacity) {
+            this.rate = rate;
+            this.capacity = capacity;
+            tokens = capacity;
+            lastRefill = System.currentTimeMillis();
+        }
+
+        /**
+         * Takes a token, which may be borrowed from the future.
+         *
+         * @return milliseconds to wait for the token
+         */
+        protected synchronized long reserve(final long now) {
+            refill(now);
+            tokens -= 1d;
+            long waitMillis = tokens >= 0d ? 0L : (long) Math.ceil(-tokens / rate * 1000d);
+            if (blockedUntil > now) {
+                waitMillis = Math.max(waitMillis, blockedUntil - now);
+            }
+            return waitMillis;
+        }
+
+        protected void refill(final long now) {
+            if (now > lastRefill) {
+                tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1000d);
+                lastRefill = now;
+            }
+        }
+
+        protected synchronized void increase() {
+            rate = Math.min(rate + rateIncrease, maxRate);
+        }
+
+        protected synchronized void decrease(final long now, final long retryAfter) {
+            refill(now);
+            rate = Math.max(rate * rateDecreaseFactor, minRate);
+            if (retryAfter > 0L) {
+                blockedUntil = Math.max(blockedUntil, now + retryAfter);
+            }
+        }
+
+        protected synchronized double getRate() {
+            return rate;
+        }
+    }
 }
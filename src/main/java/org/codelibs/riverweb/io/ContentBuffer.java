@@ -0,0 +1,180 @@
+package org.codelibs.riverweb.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Response body which can be read many times.
+ * A small content is held in a pooled byte array, and a large content is
+ * spilled into a temp file and read through a memory-mapped buffer.
+ */
+public class ContentBuffer implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ContentBuffer.class);
+
+    protected final ContentBufferPool pool;
+
+    protected byte[] buffer;
+
+    protected int length;
+
+    protected File file;
+
+    protected ByteBuffer mappedBuffer;
+
+    protected String digest;
+
+    protected ContentBuffer(final ContentBufferPool pool) {
+        this.pool = pool;
+    }
+
+    protected void load(final InputStream inputStream) throws IOException {
+        buffer = pool.acquire();
+        final int maxMemorySize = pool.getMaxMemorySize();
+        int size;
+        while ((size = inputStream.read(buffer, length, buffer.length - length)) != -1) {
+            length += size;
+            if (length == buffer.length) {
+                if (length >= maxMemorySize) {
+                    spill(inputStream);
+                    return;
+                }
+                final byte[] newBuffer = new byte[(int) Math.min((long) buffer.length * 2, maxMemorySize)];
+                System.arraycopy(buffer, 0, newBuffer, 0, length);
+                pool.release(buffer);
+                buffer = newBuffer;
+            }
+        }
+    }
+
+    protected void spill(final InputStream inputStream) throws IOException {
+        file = File.createTempFile("river-web-", ".tmp");
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(buffer, 0, length);
+            int size;
+            while ((size = inputStream.read(buffer)) != -1) {
+                out.write(buffer, 0, size);
+            }
+        }
+        pool.release(buffer);
+        buffer = null;
+        length = 0;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            mappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    public long length() {
+        if (mappedBuffer != null) {
+            return mappedBuffer.limit();
+        }
+        return length;
+    }
+
+    /**
+     * @return hex digest of the content, or null if disabled
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    public boolean isInMemory() {
+        return mappedBuffer == null;
+    }
+
+    public InputStream getInputStream() {
+        if (mappedBuffer != null) {
+            return new ByteBufferInputStream(mappedBuffer.duplicate());
+        }
+        return new ByteArrayInputStream(buffer, 0, length);
+    }
+
+    public byte[] getBytes() {
+        if (mappedBuffer != null) {
+            final ByteBuffer buf = mappedBuffer.duplicate();
+            final byte[] bytes = new byte[buf.remaining()];
+            buf.get(bytes);
+            return bytes;
+        }
+        final byte[] bytes = new byte[length];
+        System.arraycopy(buffer, 0, bytes, 0, length);
+        return bytes;
+    }
+
+    public String getString(final String charsetName) {
+        final Charset charset = Charset.forName(charsetName);
+        if (mappedBuffer != null) {
+            return charset.decode(mappedBuffer.duplicate()).toString();
+        }
+        return new String(buffer, 0, length, charset);
+    }
+
+    @Override
+    public void close() {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+            length = 0;
+        }
+        mappedBuffer = null;
+        if (file != null) {
+            if (!file.delete()) {
+                logger.warn("Failed to delete " + file.getAbsolutePath());
+            }
+            file = null;
+        }
+    }
+
+    protected static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        protected ByteBufferInputStream(final ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            return buf.get() & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int off, final int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            final int size = Math.min(len, buf.remaining());
+            buf.get(bytes, off, size);
+            return size;
+        }
+
+        @Override
+        public long skip(final long n) {
+            final int size = (int) Math.max(0, Math.min(n, buf.remaining()));
+            buf.position(buf.position() + size);
+            return size;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+}
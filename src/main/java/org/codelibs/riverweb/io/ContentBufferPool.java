@@ -0,0 +1,130 @@
+package org.codelibs.riverweb.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Creates {@link ContentBuffer}s and recycles their byte arrays.
+ */
+public class ContentBufferPool {
+
+    protected int initialBufferSize = 64 * 1024; // 64K
+
+    protected int maxMemorySize = 1024 * 1024; // 1M
+
+    protected int maxPoolSize = 64;
+
+    // null to disable digests
+    protected String digestAlgorithm = "SHA-1";
+
+    protected volatile BlockingQueue<byte[]> bufferQueue;
+
+    /**
+     * Reads the input stream into a buffer. The content is kept in memory up to
+     * maxMemorySize bytes, and larger content is spilled into a temp file.
+     * The digest of the content is computed while reading.
+     *
+     * @param inputStream content to read
+     * @return content buffer that should be closed after use
+     * @throws IOException if the content cannot be read
+     */
+    public ContentBuffer load(final InputStream inputStream) throws IOException {
+        final ContentBuffer contentBuffer = new ContentBuffer(this);
+        boolean loaded = false;
+        try {
+            if (digestAlgorithm != null) {
+                final MessageDigest messageDigest = getMessageDigest();
+                contentBuffer.load(new DigestInputStream(inputStream, messageDigest));
+                contentBuffer.digest = toHex(messageDigest.digest());
+            } else {
+                contentBuffer.load(inputStream);
+            }
+            loaded = true;
+            return contentBuffer;
+        } finally {
+            if (!loaded) {
+                contentBuffer.close();
+            }
+        }
+    }
+
+    protected MessageDigest getMessageDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(digestAlgorithm);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IOException("Unknown digest algorithm: " + digestAlgorithm, e);
+        }
+    }
+
+    protected static String toHex(final byte[] bytes) {
+        final char[] hexChars = "0123456789abcdef".toCharArray();
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = hexChars[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = hexChars[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    protected byte[] acquire() {
+        final byte[] buffer = getBufferQueue().poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        return new byte[Math.min(initialBufferSize, maxMemorySize)];
+    }
+
+    protected void release(final byte[] buffer) {
+        if (buffer != null && buffer.length <= maxMemorySize) {
+            getBufferQueue().offer(buffer);
+        }
+    }
+
+    protected BlockingQueue<byte[]> getBufferQueue() {
+        if (bufferQueue == null) {
+            synchronized (this) {
+                if (bufferQueue == null) {
+                    bufferQueue = new ArrayBlockingQueue<>(maxPoolSize);
+                }
+            }
+        }
+        return bufferQueue;
+    }
+
+    public int getInitialBufferSize() {
+        return initialBufferSize;
+    }
+
+    public void setInitialBufferSize(final int initialBufferSize) {
+        this.initialBufferSize = initialBufferSize;
+    }
+
+    public int getMaxMemorySize() {
+        return maxMemorySize;
+    }
+
+    public void setMaxMemorySize(final int maxMemorySize) {
+        this.maxMemorySize = maxMemorySize;
+    }
+
+    public int getMaxPoolSize() {
+        return maxPoolSize;
+    }
+
+    public void setMaxPoolSize(final int maxPoolSize) {
+        this.maxPoolSize = maxPoolSize;
+    }
+
+    public String getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    public void setDigestAlgorithm(final String digestAlgorithm) {
+        this.digestAlgorithm = digestAlgorithm;
+    }
+}
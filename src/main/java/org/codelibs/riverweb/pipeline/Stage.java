@@ -0,0 +1,170 @@
+package org.codelibs.riverweb.pipeline;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codelibs.fess.crawler.exception.CrawlingAccessException;
+import org.codelibs.riverweb.util.SettingsUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A stage of the crawl pipeline which runs tasks in its own thread pool.
+ * A caller is blocked while the queue of the stage is full, so a slow stage
+ * slows down the previous stage instead of buffering unbounded tasks.
+ */
+public class Stage {
+    private static final Logger logger = LoggerFactory.getLogger(Stage.class);
+
+    protected final String name;
+
+    protected final ThreadPoolExecutor executor;
+
+    protected final Semaphore permits;
+
+    protected final long closeTimeout;
+
+    protected final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    protected final AtomicLong completedCount = new AtomicLong();
+
+    protected final AtomicLong failureCount = new AtomicLong();
+
+    protected final AtomicLong blockedMillis = new AtomicLong();
+
+    /**
+     * Creates a stage from stage settings: {"threads":4,"queue_size":100,"close_timeout":600000}
+     *
+     * @param name name of this stage
+     * @param stageSettings stage settings
+     * @param defaultThreads the number of threads if not specified
+     * @param defaultQueueSize the queue size if not specified
+     */
+    public Stage(final String name, final Map<String, Object> stageSettings, final int defaultThreads, final int defaultQueueSize) {
+        this.name = name;
+        final int threads = Math.max(SettingsUtils.get(stageSettings, "threads", defaultThreads), 1);
+        final int queueSize = Math.max(SettingsUtils.get(stageSettings, "queue_size", defaultQueueSize), 0);
+        permits = new Semaphore(threads + queueSize);
+        closeTimeout = SettingsUtils.get(stageSettings, "close_timeout", 10 * 60 * 1000L);
+        final ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+        final AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+            final Thread thread = defaultFactory.newThread(r);
+            thread.setName(name + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Stage(" + name + "): threads: " + threads + ", queue_size: " + queueSize);
+        }
+    }
+
+    /**
+     * Runs the task in this stage, waiting while the queue is full.
+     *
+     * @param task task
+     */
+    public void submit(final Runnable task) {
+        if (!permits.tryAcquire()) {
+            final long startTime = System.currentTimeMillis();
+            try {
+                permits.acquire();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CrawlingAccessException("Interrupted while waiting for " + name + " stage.", e);
+            } finally {
+                blockedMillis.addAndGet(System.currentTimeMillis() - startTime);
+            }
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                    completedCount.incrementAndGet();
+                } catch (final Exception e) {
+                    failureCount.incrementAndGet();
+                    logger.warn("Failed to process a task in " + name + " stage.", e);
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (final RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        final int depth = executor.getQueue().size();
+        maxQueueDepth.accumulateAndGet(depth, Math::max);
+    }
+
+    /**
+     * Waits for queued tasks and stops threads.
+     * Tasks which do not finish in close_timeout are cancelled, and running ones are interrupted.
+     */
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(closeTimeout, TimeUnit.MILLISECONDS)) {
+                final int activeCount = executor.getActiveCount();
+                final int pendingCount = executor.shutdownNow().size();
+                failureCount.addAndGet(pendingCount);
+                logger.warn("Tasks in " + name + " stage did not finish in " + closeTimeout + "ms. Cancelled " + pendingCount
+                        + " queued tasks and interrupted " + activeCount + " running tasks.");
+                if (!executor.awaitTermination(closeTimeout, TimeUnit.MILLISECONDS)) {
+                    logger.warn("Running tasks in " + name + " stage did not stop.");
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+            logger.warn("Interrupted while waiting for " + name + " stage.", e);
+        }
+        if (logger.isInfoEnabled()) {
+            logger.info(toString());
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    /**
+     * @return total time callers were blocked by the full queue
+     */
+    public long getBlockedMillis() {
+        return blockedMillis.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Stage(" + name + "): completed: " + getCompletedCount() + ", failures: " + getFailureCount() + ", queue_depth: "
+                + getQueueDepth() + ", max_queue_depth: " + getMaxQueueDepth() + ", blocked: " + getBlockedMillis() + "ms";
+    }
+}
@@ -0,0 +1,140 @@
+package org.codelibs.riverweb.selector;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Elements;
+import org.jsoup.select.Evaluator;
+import org.jsoup.select.Selector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * CSS query parsed into a chain of jsoup evaluators.
+ * ":eq(n)" just after a selector picks the element by its index in the
+ * selected elements. ":lt(n)" and ":gt(n)" are jsoup's sibling index selectors.
+ */
+public class CompiledSelector {
+    private static final Logger logger = LoggerFactory.getLogger(CompiledSelector.class);
+
+    private static final Pattern INDEX_PATTERN = Pattern.compile(":eq\\(([0-9]+)\\)");
+
+    private static final Method PARSE_METHOD;
+
+    static {
+        Method method = null;
+        try {
+            method = Class.forName("org.jsoup.select.QueryParser").getDeclaredMethod("parse", String.class);
+            method.setAccessible(true);
+        } catch (final Exception e) {
+            logger.warn("Could not access jsoup's query parser. CSS queries are parsed on each evaluation.", e);
+        }
+        PARSE_METHOD = method;
+    }
+
+    private final String query;
+
+    private final Step[] steps;
+
+    public CompiledSelector(final String query) {
+        this.query = query;
+
+        final List<Step> stepList = new ArrayList<>();
+        final Matcher matcher = INDEX_PATTERN.matcher(query);
+        final StringBuffer buf = new StringBuffer();
+        while (matcher.find()) {
+            final String value = matcher.group();
+            matcher.appendReplacement(buf, "");
+            if (buf.length() > 0 && buf.charAt(buf.length() - 1) != ' ') {
+                try {
+                    final int index = Integer.parseInt(matcher.group(1));
+                    stepList.add(new Step(buf.toString(), true, index));
+                    buf.setLength(0);
+                } catch (final NumberFormatException e) {
+                    logger.warn("Invalid number: " + query, e);
+                    buf.append(value);
+                }
+            } else {
+                buf.append(value);
+            }
+        }
+        matcher.appendTail(buf);
+        final String lastQuery = buf.toString();
+        if (lastQuery.trim().length() > 0) {
+            stepList.add(new Step(lastQuery, false, 0));
+        }
+        steps = stepList.toArray(new Step[stepList.size()]);
+    }
+
+    public Element[] select(final Element[] elements) {
+        Element[] targets = elements;
+        for (final Step step : steps) {
+            final List<Element> elementList = new ArrayList<Element>();
+            for (final Element element : targets) {
+                if (element == null) {
+                    elementList.add(null);
+                    continue;
+                }
+                final Elements childElements = step.select(element);
+                if (!step.indexed) {
+                    elementList.addAll(childElements);
+                } else if (step.index < childElements.size()) {
+                    elementList.add(childElements.get(step.index));
+                }
+            }
+            targets = elementList.toArray(new Element[elementList.size()]);
+        }
+        return targets;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    @Override
+    public String toString() {
+        return query;
+    }
+
+    private static class Step {
+        private final String query;
+
+        private final Evaluator evaluator;
+
+        // true if picking the element at index
+        private final boolean indexed;
+
+        private final int index;
+
+        Step(final String query, final boolean indexed, final int index) {
+            this.query = query.trim();
+            this.evaluator = parse(this.query);
+            this.indexed = indexed;
+            this.index = index;
+        }
+
+        private static Evaluator parse(final String query) {
+            if (PARSE_METHOD != null) {
+                try {
+                    return (Evaluator) PARSE_METHOD.invoke(null, query);
+                } catch (final Exception e) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Could not parse " + query, e);
+                    }
+                }
+            }
+            return null;
+        }
+
+        Elements select(final Element element) {
+            if (evaluator != null) {
+                return Selector.select(evaluator, element);
+            }
+            return element.select(query);
+        }
+    }
+}
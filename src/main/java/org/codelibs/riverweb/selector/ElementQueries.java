@@ -0,0 +1,93 @@
+package org.codelibs.riverweb.selector;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import org.jsoup.nodes.Element;
+
+/**
+ * Resolves a query type, such as "text" or "attr", to an {@link ElementQuery}.
+ * Known query types are dispatched to Element methods directly, and other
+ * methods are looked up once as method handles and cached by name and arity.
+ */
+public final class ElementQueries {
+    private static final Map<String, Function<Element, Object>> NO_ARG_QUERY_MAP = new HashMap<>();
+
+    private static final Map<String, BiFunction<Element, String, Object>> ONE_ARG_QUERY_MAP = new HashMap<>();
+
+    private static final Map<String, MethodHandle> METHOD_HANDLE_CACHE = new ConcurrentHashMap<>();
+
+    static {
+        NO_ARG_QUERY_MAP.put("className", Element::className);
+        NO_ARG_QUERY_MAP.put("data", Element::data);
+        NO_ARG_QUERY_MAP.put("html", Element::html);
+        NO_ARG_QUERY_MAP.put("id", Element::id);
+        NO_ARG_QUERY_MAP.put("ownText", Element::ownText);
+        NO_ARG_QUERY_MAP.put("tagName", Element::tagName);
+        NO_ARG_QUERY_MAP.put("text", Element::text);
+        NO_ARG_QUERY_MAP.put("val", Element::val);
+        NO_ARG_QUERY_MAP.put("nodeName", Element::nodeName);
+        NO_ARG_QUERY_MAP.put("outerHtml", Element::outerHtml);
+        NO_ARG_QUERY_MAP.put("baseUri", Element::baseUri);
+
+        ONE_ARG_QUERY_MAP.put("attr", Element::attr);
+        ONE_ARG_QUERY_MAP.put("absUrl", Element::absUrl);
+    }
+
+    private ElementQueries() {
+    }
+
+    public static ElementQuery get(final String queryType, final Object[] args) {
+        if (args.length == 0) {
+            final Function<Element, Object> func = NO_ARG_QUERY_MAP.get(queryType);
+            if (func != null) {
+                return func::apply;
+            }
+        } else if (args.length == 1 && args[0] instanceof String) {
+            final BiFunction<Element, String, Object> func = ONE_ARG_QUERY_MAP.get(queryType);
+            if (func != null) {
+                final String arg = (String) args[0];
+                return element -> func.apply(element, arg);
+            }
+        }
+
+        final MethodHandle methodHandle;
+        try {
+            methodHandle = getMethodHandle(queryType, args.length);
+        } catch (final Exception e) {
+            return element -> {
+                throw new IllegalArgumentException("Unsupported query: " + queryType + " with " + args.length + " args", e);
+            };
+        }
+        return element -> {
+            try {
+                return methodHandle.invoke(element, args);
+            } catch (final RuntimeException | Error e) {
+                throw e;
+            } catch (final Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        };
+    }
+
+    private static MethodHandle getMethodHandle(final String queryType, final int numOfArgs) throws ReflectiveOperationException {
+        final String key = queryType + "/" + numOfArgs;
+        MethodHandle methodHandle = METHOD_HANDLE_CACHE.get(key);
+        if (methodHandle == null) {
+            final Class<?>[] paramTypes = new Class<?>[numOfArgs];
+            for (int i = 0; i < paramTypes.length; i++) {
+                paramTypes[i] = String.class;
+            }
+            methodHandle = MethodHandles.publicLookup().unreflect(Element.class.getMethod(queryType, paramTypes))
+                    .asType(MethodType.genericMethodType(1 + numOfArgs)).asSpreader(Object[].class, numOfArgs);
+            METHOD_HANDLE_CACHE.put(key, methodHandle);
+        }
+        return methodHandle;
+    }
+}
@@ -0,0 +1,8 @@
+package org.codelibs.riverweb.selector;
+
+import org.jsoup.nodes.Element;
+
+@FunctionalInterface
+public interface ElementQuery {
+    Object query(Element element);
+}
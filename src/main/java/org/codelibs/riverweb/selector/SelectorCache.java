@@ -0,0 +1,40 @@
+package org.codelibs.riverweb.selector;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of compiled CSS queries.
+ */
+public final class SelectorCache {
+    private static final int MAX_SIZE = 1000;
+
+    private static final Map<String, CompiledSelector> CACHE = new LinkedHashMap<String, CompiledSelector>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, CompiledSelector> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+
+    private SelectorCache() {
+    }
+
+    public static CompiledSelector get(final String query) {
+        synchronized (CACHE) {
+            CompiledSelector selector = CACHE.get(query);
+            if (selector == null) {
+                selector = new CompiledSelector(query);
+                CACHE.put(query, selector);
+            }
+            return selector;
+        }
+    }
+
+    public static void clear() {
+        synchronized (CACHE) {
+            CACHE.clear();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.codelibs.riverweb.selector;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jsoup.nodes.Element;
+
+/**
+ * Trie of CSS query chains in a scraping rule.
+ * Properties whose queries share a prefix, such as ["div.item", "span.title"]
+ * and ["div.item", "a"], share the nodes of the prefix, so the prefix is
+ * evaluated once per document.
+ */
+public class SelectorTrie {
+    private final Node paddingRoot = new Node(-1, null, null, true);
+
+    private final Node root = new Node(-1, null, null, false);
+
+    private final List<Node> nodeList = new ArrayList<>();
+
+    /**
+     * Adds a query chain.
+     *
+     * @param selectors query chain
+     * @param nullPadding true if an element without matched children is kept as null
+     * @return node id of the last query
+     */
+    public synchronized int add(final CompiledSelector[] selectors, final boolean nullPadding) {
+        Node node = nullPadding ? paddingRoot : root;
+        for (final CompiledSelector selector : selectors) {
+            Node child = node.children.get(selector.getQuery());
+            if (child == null) {
+                child = new Node(nodeList.size(), selector, node, nullPadding);
+                node.children.put(selector.getQuery(), child);
+                nodeList.add(child);
+            }
+            node = child;
+        }
+        return node.id;
+    }
+
+    public int size() {
+        return nodeList.size();
+    }
+
+    public Evaluation evaluate(final Element element) {
+        return new Evaluation(element);
+    }
+
+    public class Evaluation {
+        private final Element[] rootElements;
+
+        private final Element[][] results;
+
+        Evaluation(final Element element) {
+            rootElements = new Element[] { element };
+            results = new Element[nodeList.size()][];
+        }
+
+        /**
+         * Returns elements of the node. The result of each node is evaluated
+         * once and must not be modified.
+         *
+         * @param id node id
+         * @return selected elements
+         */
+        public Element[] get(final int id) {
+            if (id < 0) {
+                return rootElements;
+            }
+            Element[] elements = results[id];
+            if (elements == null) {
+                final Node node = nodeList.get(id);
+                elements = node.select(get(node.parent.id));
+                results[id] = elements;
+            }
+            return elements;
+        }
+    }
+
+    private static class Node {
+        private final int id;
+
+        private final CompiledSelector selector;
+
+        private final Node parent;
+
+        private final boolean nullPadding;
+
+        private final Map<String, Node> children = new HashMap<>();
+
+        Node(final int id, final CompiledSelector selector, final Node parent, final boolean nullPadding) {
+            this.id = id;
+            this.selector = selector;
+            this.parent = parent;
+            this.nullPadding = nullPadding;
+        }
+
+        Element[] select(final Element[] targets) {
+            final List<Element> elementList = new ArrayList<Element>();
+            for (final Element element : targets) {
+                if (element == null) {
+                    elementList.add(null);
+                } else {
+                    final Element[] childElements = selector.select(new Element[] { element });
+                    if (childElements.length == 0 && nullPadding) {
+                        elementList.add(null);
+                    } else {
+                        for (final Element childElement : childElements) {
+                            elementList.add(childElement);
+                        }
+                    }
+                }
+            }
+            return elementList.toArray(new Element[elementList.size()]);
+        }
+    }
+}
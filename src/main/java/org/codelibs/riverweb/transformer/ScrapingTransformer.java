@@ -3,32 +3,26 @@ package org.codelibs.riverweb.transformer;
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 
 import java.io.BufferedInputStream;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import javax.annotation.PostConstruct;
 
-import org.codelibs.core.beans.BeanDesc;
-import org.codelibs.core.beans.factory.BeanDescFactory;
 import org.codelibs.core.beans.util.BeanUtil;
-import org.codelibs.core.io.CopyUtil;
-import org.codelibs.core.io.FileUtil;
-import org.codelibs.core.lang.MethodUtil;
 import org.codelibs.core.lang.StringUtil;
 import org.codelibs.core.misc.Base64Util;
 import org.codelibs.fess.crawler.Constants;
@@ -41,17 +35,29 @@ import org.codelibs.fess.crawler.entity.ResultData;
 import org.codelibs.fess.crawler.exception.CrawlingAccessException;
 import org.codelibs.fess.crawler.helper.EncodingHelper;
 import org.codelibs.fess.crawler.transformer.impl.HtmlTransformer;
-import org.codelibs.riverweb.WebRiverConstants;
 import org.codelibs.riverweb.app.service.ScriptService;
 import org.codelibs.riverweb.config.RiverConfig;
 import org.codelibs.riverweb.config.RiverConfigManager;
+import org.codelibs.riverweb.crawler.ChildUrlFilter;
+import org.codelibs.riverweb.crawler.LastModifiedCache;
+import org.codelibs.riverweb.entity.PropertyRule;
 import org.codelibs.riverweb.entity.ScrapingRule;
-import org.codelibs.riverweb.util.SettingsUtils;
+import org.codelibs.riverweb.entity.ScriptInfo;
+import org.codelibs.riverweb.indexer.BulkIndexer;
+import org.codelibs.riverweb.io.ContentBuffer;
+import org.codelibs.riverweb.io.ContentBufferPool;
+import org.codelibs.riverweb.pipeline.Stage;
+import org.codelibs.riverweb.selector.CompiledSelector;
+import org.codelibs.riverweb.selector.ElementQuery;
+import org.codelibs.riverweb.selector.SelectorCache;
+import org.codelibs.riverweb.selector.SelectorTrie;
+import org.codelibs.riverweb.util.FingerprintUtils;
+import org.codelibs.riverweb.util.HeaderUtils;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
 import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.script.ScriptService.ScriptType;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
 import org.lastaflute.di.core.SingletonLaContainer;
 import org.lastaflute.di.core.factory.SingletonLaContainerFactory;
 import org.slf4j.Logger;
@@ -59,38 +65,20 @@ import org.slf4j.LoggerFactory;
 
 public class ScrapingTransformer extends HtmlTransformer {
 
-    private static final long DEFAULT_MAX_ATTACHMENT_SIZE = 1000 * 1000; // 1M
-
-    private static final String VALUE_QUERY_TYPE = "value";
-
-    private static final String TYPE_QUERY_TYPE = "type";
-
-    private static final String SCRIPT_QUERY_TYPE = "script";
-
-    private static final String ARGS_QUERY_TYPE = "args";
-
-    private static final String IS_ARRAY_PROP_NAME = "is_array";
-
-    private static final String IS_DISTINCT_PROP_NAME = "is_distinct";
-
-    private static final String IS_CHILD_URL_PROP_NAME = "is_child";
-
-    private static final String TRIM_SPACES_PROP_NAME = "trim_spaces";
-
     private static final String TIMESTAMP_FIELD = "@timestamp";
 
     private static final String POSITION_FIELD = "position";
 
-    private static final String ARRAY_PROPERTY_PREFIX = "[]";
+    private static final String DIGEST_FIELD = "digest";
 
     private static final Logger logger = LoggerFactory.getLogger(ScrapingTransformer.class);
 
-    private static final String[] queryTypes = new String[] { "className", "data", "html", "id", "ownText", "tagName", "text", "val",
-            "nodeName", "outerHtml", "attr", "baseUri", "absUrl" };
-
     public String[] copiedResonseDataFields = new String[] { "url", "parentUrl", "httpStatusCode", "method", "charSet", "contentLength",
             "mimeType", "executionTime", "lastModified" };
 
+    // response headers stored as lower-case fields for incremental crawling, such as "etag"
+    public String[] copiedResponseHeaders = new String[] { HeaderUtils.ETAG };
+
     private EsClient esClient;
 
     protected RiverConfigManager riverConfigManager;
@@ -99,6 +87,12 @@ public class ScrapingTransformer extends HtmlTransformer {
 
     protected ThreadLocal<RiverConfig> riverConfigLocal = new ThreadLocal<>();
 
+    protected ThreadLocal<ContentBuffer> contentBufferLocal = new ThreadLocal<>();
+
+    // a rule matched to the current response, resolved once per response
+    protected ThreadLocal<Optional<ScrapingRule>> scrapingRuleLocal = new ThreadLocal<>();
+
+    protected ContentBufferPool contentBufferPool = new ContentBufferPool();
 
     @PostConstruct
     public void init() {
@@ -112,24 +106,53 @@ public class ScrapingTransformer extends HtmlTransformer {
 
         try {
             riverConfigLocal.set(riverConfig);
+            scrapingRuleLocal.set(Optional.ofNullable(riverConfig.getScrapingRule(responseData)));
             return super.transform(responseData);
         } finally {
             riverConfigLocal.remove();
+            scrapingRuleLocal.remove();
             childUrlSetLocal.remove();
+            final ContentBuffer contentBuffer = contentBufferLocal.get();
+            if (contentBuffer != null) {
+                contentBuffer.close();
+                contentBufferLocal.remove();
+            }
+        }
+    }
+
+    protected ScrapingRule getScrapingRule(final ResponseData responseData) {
+        Optional<ScrapingRule> scrapingRule = scrapingRuleLocal.get();
+        if (scrapingRule == null) {
+            scrapingRule = Optional.ofNullable(riverConfigLocal.get().getScrapingRule(responseData));
+            scrapingRuleLocal.set(scrapingRule);
+        }
+        return scrapingRule.orElse(null);
+    }
+
+    protected ContentBuffer getContentBuffer(final ResponseData responseData) {
+        ContentBuffer contentBuffer = contentBufferLocal.get();
+        if (contentBuffer == null) {
+            try (InputStream is = responseData.getResponseBody()) {
+                contentBuffer = contentBufferPool.load(is);
+            } catch (final IOException e) {
+                throw new CrawlingAccessException("Could not load a content.", e);
+            }
+            contentBufferLocal.set(contentBuffer);
         }
+        return contentBuffer;
     }
 
     @Override
     protected void updateCharset(final ResponseData responseData) {
         int preloadSize = preloadSizeForCharset;
-        final ScrapingRule scrapingRule = riverConfigLocal.get().getScrapingRule(responseData);
+        final ScrapingRule scrapingRule = getScrapingRule(responseData);
         if (scrapingRule != null) {
             final Integer s = scrapingRule.getSetting("preloadSizeForCharset", Integer.valueOf(0));
             if (s.intValue() > 0) {
                 preloadSize = s.intValue();
             }
         }
-        final String encoding = loadCharset(responseData.getResponseBody(), preloadSize);
+        final String encoding = loadCharset(getContentBuffer(responseData).getInputStream(), preloadSize);
         if (encoding == null) {
             if (defaultEncoding == null) {
                 responseData.setCharSet(Constants.UTF_8);
@@ -172,98 +195,136 @@ public class ScrapingTransformer extends HtmlTransformer {
 
     @Override
     protected void storeData(final ResponseData responseData, final ResultData resultData) {
-        File file = null;
-        try {
-            final ScrapingRule scrapingRule = riverConfigLocal.get().getScrapingRule(responseData);
-            if (scrapingRule == null) {
-                logger.info("Skip Scraping: " + responseData.getUrl());
-                return;
+        final ScrapingRule scrapingRule = getScrapingRule(responseData);
+        if (scrapingRule == null) {
+            logger.info("Skip Scraping: " + responseData.getUrl());
+            return;
+        }
+
+        final ContentBuffer contentBuffer = getContentBuffer(responseData);
+        if (isUnchanged(scrapingRule, contentBuffer, responseData)) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Skip unchanged content: " + responseData.getUrl());
             }
+            return;
+        }
 
-            file = File.createTempFile("river-web-", ".tmp");
-            CopyUtil.copy(responseData.getResponseBody(), file);
-            processData(scrapingRule, file, responseData, resultData);
-        } catch (final IOException e) {
-            throw new CrawlingAccessException("Failed to create a temp file.", e);
-        } finally {
-            if (file != null && !file.delete()) {
-                logger.warn("Failed to delete " + file.getAbsolutePath());
+        final RiverConfig riverConfig = riverConfigLocal.get();
+        final Stage extractStage = riverConfig.getExtractStage();
+        if (extractStage != null && !scrapingRule.hasChildUrlProperty() && scrapingRule.getChildUrlSelectorMap() == null) {
+            // child urls are not needed from the extraction, so the crawler thread can go on
+            contentBufferLocal.remove();
+            try {
+                extractStage.submit(() -> runInStage(riverConfig, () -> {
+                    try {
+                        processData(scrapingRule, contentBuffer, responseData, resultData);
+                    } finally {
+                        contentBuffer.close();
+                    }
+                }));
+            } catch (final RuntimeException e) {
+                contentBuffer.close();
+                throw e;
             }
+            return;
         }
+
+        processData(scrapingRule, contentBuffer, responseData, resultData);
     }
 
-    protected void processData(final ScrapingRule scrapingRule, final File file, final ResponseData responseData,
-            final ResultData resultData) {
-        final Map<String, Map<String, Object>> scrapingRuleMap = scrapingRule.getRuleMap();
+    protected void runInStage(final RiverConfig riverConfig, final Runnable task) {
+        try {
+            riverConfigLocal.set(riverConfig);
+            task.run();
+        } finally {
+            riverConfigLocal.remove();
+            childUrlSetLocal.remove();
+        }
+    }
+
+    protected boolean isUnchanged(final ScrapingRule scrapingRule, final ContentBuffer contentBuffer, final ResponseData responseData) {
+        final RiverConfig riverConfig = riverConfigLocal.get();
+        final LastModifiedCache lastModifiedCache = riverConfig.getLastModifiedCache();
+        // child urls in properties need to be extracted even if unchanged
+        if (!riverConfig.isIncremental() || lastModifiedCache == null || scrapingRule.hasChildUrlProperty()) {
+            return false;
+        }
+        final String digest = contentBuffer.getDigest();
+        return digest != null && lastModifiedCache.hasDigest(responseData.getUrl(), digest);
+    }
 
+    protected void processData(final ScrapingRule scrapingRule, final ContentBuffer contentBuffer, final ResponseData responseData,
+            final ResultData resultData) {
         org.jsoup.nodes.Document document = null;
         String charsetName = responseData.getCharSet();
         if (charsetName == null) {
             charsetName = Constants.UTF_8;
         }
 
-        final Boolean isHtmlParsed = scrapingRule.getSetting("html", Boolean.TRUE);
-        if (isHtmlParsed.booleanValue()) {
-            try (InputStream is = new BufferedInputStream(new FileInputStream(file))) {
+        if (scrapingRule.isHtmlParsed()) {
+            try (InputStream is = contentBuffer.getInputStream()) {
                 document = Jsoup.parse(is, charsetName, responseData.getUrl());
             } catch (final IOException e) {
                 throw new CrawlingAccessException("Could not parse " + responseData.getUrl(), e);
             }
         }
 
+        final SelectorTrie.Evaluation evaluation = document != null ? scrapingRule.getSelectorTrie().evaluate(document) : null;
+
         final Map<String, Object> dataMap = new LinkedHashMap<String, Object>();
         BeanUtil.copyBeanToMap(responseData, dataMap, op -> {
             op.include(copiedResonseDataFields).excludeNull().excludeWhitespace();
         });
+        if (riverConfigLocal.get().isIncremental()) {
+            // fields loaded by LastModifiedCache in the next session
+            if (contentBuffer.getDigest() != null) {
+                dataMap.put(DIGEST_FIELD, contentBuffer.getDigest());
+            }
+            for (final String name : copiedResponseHeaders) {
+                final String value = HeaderUtils.getHeader(responseData, name);
+                if (StringUtil.isNotBlank(value)) {
+                    dataMap.put(name.toLowerCase(Locale.ROOT), value);
+                }
+            }
+        }
         if (logger.isDebugEnabled()) {
-            logger.debug("ruleMap: " + scrapingRuleMap);
+            logger.debug("ruleMap: " + scrapingRule.getRuleMap());
             logger.debug("dataMap: " + dataMap);
         }
-        for (final Map.Entry<String, Map<String, Object>> entry : scrapingRuleMap.entrySet()) {
-            final String propName = entry.getKey();
-            final Map<String, Object> params = entry.getValue();
-            final boolean isTrimSpaces = SettingsUtils.get(params, TRIM_SPACES_PROP_NAME, Boolean.FALSE).booleanValue();
-            boolean isArray = SettingsUtils.get(params, IS_ARRAY_PROP_NAME, Boolean.FALSE).booleanValue();
-            boolean isChildUrl = SettingsUtils.get(params, IS_CHILD_URL_PROP_NAME, Boolean.FALSE).booleanValue();
-            boolean isDistinct = SettingsUtils.get(params, IS_DISTINCT_PROP_NAME, Boolean.FALSE).booleanValue();
+        for (final PropertyRule propertyRule : scrapingRule.getPropertyRuleList()) {
+            final String propName = propertyRule.getName();
+            final boolean isTrimSpaces = propertyRule.isTrimSpaces();
+            boolean isArray = propertyRule.isArray();
+            boolean isChildUrl = propertyRule.isChildUrl();
+            boolean isDistinct = propertyRule.isDistinct();
 
             final List<String> strList = new ArrayList<String>();
 
-            final Object value = SettingsUtils.get(params, VALUE_QUERY_TYPE, null);
-            final String type = SettingsUtils.get(params, TYPE_QUERY_TYPE, null);
-            if (value != null) {
-                if (value instanceof String) {
-                    strList.add(trimSpaces(value.toString(), isTrimSpaces));
-                } else if (value instanceof List) {
-                    @SuppressWarnings("unchecked")
-                    final List<Object> list = (List<Object>) value;
-                    for (final Object obj : list) {
-                        strList.add(trimSpaces(obj.toString(), isTrimSpaces));
-                    }
-                }
-            } else if ("data".equals(type) || "attachment".equals(type)) {
-                final long maxFileSize = SettingsUtils.get(params, "maxFileSize", DEFAULT_MAX_ATTACHMENT_SIZE);
-                final long fileSize = file.length();
+            if (propertyRule.getValues() != null) {
+                strList.addAll(propertyRule.getValues());
+            } else if (propertyRule.isData()) {
+                final long maxFileSize = propertyRule.getMaxFileSize();
+                final long fileSize = contentBuffer.length();
                 if (fileSize <= maxFileSize) {
-                    strList.add(Base64Util.encode(FileUtil.readBytes(file)));
+                    strList.add(Base64Util.encode(contentBuffer.getBytes()));
                     isArray = false;
                     isChildUrl = false;
                     isDistinct = false;
                 } else {
                     logger.info("The max file size(" + fileSize + "/" + maxFileSize + " is exceeded: " + responseData.getUrl());
                 }
-            } else if ("source".equals(type)) {
+            } else if (propertyRule.isSource()) {
                 try {
-                    strList.add(trimSpaces(FileUtil.readText(file, charsetName), isTrimSpaces));
+                    strList.add(trimSpaces(contentBuffer.getString(charsetName), isTrimSpaces));
                 } catch (Exception e) {
                     logger.warn("Failed to read type:source from " + responseData.getUrl(), e);
                 }
-            } else if (document != null) {
-                processCssQuery(document, propName, params, isTrimSpaces, strList);
+            } else if (evaluation != null) {
+                processCssQuery(evaluation, propertyRule, strList);
             }
 
             Object propertyValue;
-            final ScriptInfo scriptInfo = getScriptValue(params);
+            final ScriptInfo scriptInfo = propertyRule.getScriptInfo();
             if (isDistinct) {
                 final Set<String> strSet = new HashSet<>();
                 final List<String> distinctList = strList.stream().filter(s -> strSet.add(s) && (!isTrimSpaces || StringUtil.isNotBlank(s)))
@@ -280,24 +341,26 @@ public class ScrapingTransformer extends HtmlTransformer {
                 vars.put("data", responseData);
                 vars.put("result", resultData);
                 vars.put("property", propName);
-                vars.put("parameters", params);
+                vars.put("parameters", propertyRule.getParams());
                 vars.put("array", isArray);
                 vars.put("list", strList);
-                if (isArray) {
-                    final List<Object> list = new ArrayList<Object>();
+                if (isArray && scriptInfo.isBatch()) {
+                    vars.put("value", String.join(" ", strList));
+                    propertyValue = toList(executeScript(scriptInfo, vars));
+                } else if (isArray) {
+                    vars.put("value", String.join(" ", strList));
+                    final List<Object> list = new ArrayList<Object>(strList.size());
                     for (int i = 0; i < strList.size(); i++) {
-                        final Map<String, Object> localVars = new HashMap<String, Object>(vars);
-                        localVars.put("index", i);
-                        localVars.put("value", String.join(" ", strList));
-                        list.add(executeScript(scriptInfo.getLang(), scriptInfo.getScript(), scriptInfo.getScriptType(), localVars));
+                        vars.put("index", i);
+                        list.add(executeScript(scriptInfo, vars));
                     }
                     propertyValue = list;
                 } else {
                     vars.put("value", String.join(" ", strList));
-                    propertyValue = executeScript(scriptInfo.getLang(), scriptInfo.getScript(), scriptInfo.getScriptType(), vars);
+                    propertyValue = executeScript(scriptInfo, vars);
                 }
             }
-            addPropertyData(dataMap, propName, propertyValue);
+            addPropertyData(dataMap, propertyRule.getPath(), propertyValue);
             if (isChildUrl) {
                 Set<String> childUrlSet = childUrlSetLocal.get();
                 if (childUrlSet == null) {
@@ -322,132 +385,108 @@ public class ScrapingTransformer extends HtmlTransformer {
             }
         }
 
-        storeIndex(responseData, dataMap);
-    }
-
-    private Object executeScript(final String lang, final String script, final String scriptTypeValue, final Map<String, Object> vars) {
-        ScriptType scriptType;
-        if (ScriptType.FILE.toString().equalsIgnoreCase(scriptTypeValue)) {
-            scriptType = ScriptType.FILE;
-        } else if (ScriptType.INDEXED.toString().equalsIgnoreCase(scriptTypeValue)) {
-            scriptType = ScriptType.INDEXED;
-        } else {
-            scriptType = ScriptType.INLINE;
-        }
-        vars.put("logger", logger);
-        final ScriptService scriptService = SingletonLaContainer.getComponent(ScriptService.class);
-        return scriptService.execute(lang, script, scriptType, vars);
-    }
-
-    protected ScriptInfo getScriptValue(final Map<String, Object> params) {
-        final Object value = SettingsUtils.get(params, SCRIPT_QUERY_TYPE, null);
-        if (value == null) {
-            return null;
-        } else if (value instanceof String) {
-            return new ScriptInfo(value.toString());
-        } else if (value instanceof List) {
-            @SuppressWarnings("unchecked")
-            final List<CharSequence> list = (List<CharSequence>) value;
-            return new ScriptInfo(String.join("", list));
-        } else if (value instanceof Map) {
-            @SuppressWarnings("unchecked")
-            final Map<String, Object> scriptMap = (Map<String, Object>) value;
-            final String script = SettingsUtils.get(scriptMap, SCRIPT_QUERY_TYPE);
-            if (script == null) {
-                return null;
+        final ChildUrlFilter childUrlFilter = riverConfigLocal.get().getChildUrlFilter();
+        if (document != null && childUrlFilter != null) {
+            // links to the canonical url are duplicates of this page
+            final Element canonicalElement = document.select("link[rel=canonical][href]").first();
+            if (canonicalElement != null && StringUtil.isNotBlank(canonicalElement.absUrl("href"))) {
+                childUrlFilter.addSeen(canonicalElement.absUrl("href"));
             }
-            return new ScriptInfo(script, SettingsUtils.get(scriptMap, "lang", WebRiverConstants.DEFAULT_SCRIPT_LANG),
-                    SettingsUtils.get(scriptMap, "script_type", "inline"));
         }
-        return null;
-    }
-
-    private static class ScriptInfo {
-        private final String script;
-
-        private final String lang;
 
-        private final String scriptType;
-
-        ScriptInfo(final String script) {
-            this(script, WebRiverConstants.DEFAULT_SCRIPT_LANG, "inline");
+        if (document != null && scrapingRule.getChildUrlSelectorMap() != null && childUrlSetLocal.get() == null) {
+            // no need to parse the content again in storeChildUrls
+            childUrlSetLocal.set(extractChildUrls(document, scrapingRule.getChildUrlSelectorMap()));
         }
 
-        ScriptInfo(final String script, final String lang, final String scriptType) {
-            this.script = script;
-            this.lang = lang;
-            this.scriptType = scriptType;
+        final RiverConfig riverConfig = riverConfigLocal.get();
+        final Stage indexStage = riverConfig.getIndexStage();
+        if (indexStage != null) {
+            indexStage.submit(() -> runInStage(riverConfig, () -> storeIndex(responseData, dataMap)));
+        } else {
+            storeIndex(responseData, dataMap);
         }
+    }
 
-        public String getScript() {
-            return script;
+    protected Set<String> extractChildUrls(final org.jsoup.nodes.Document document,
+            final Map<CompiledSelector, String> childUrlSelectorMap) {
+        final Set<String> childUrlSet = new LinkedHashSet<>();
+        final Element[] documents = new Element[] { document };
+        for (final Map.Entry<CompiledSelector, String> entry : childUrlSelectorMap.entrySet()) {
+            final String attr = entry.getValue();
+            for (final Element element : entry.getKey().select(documents)) {
+                String url = element.absUrl(attr);
+                final int pos = url.indexOf('#');
+                if (pos >= 0) {
+                    url = url.substring(0, pos);
+                }
+                if (url.startsWith("http://") || url.startsWith("https://")) {
+                    childUrlSet.add(url);
+                }
+            }
         }
+        return childUrlSet;
+    }
 
-        public String getLang() {
-            return lang;
+    protected Object toList(final Object value) {
+        if (value instanceof List) {
+            return value;
+        } else if (value instanceof Collection) {
+            return new ArrayList<Object>((Collection<?>) value);
+        } else if (value instanceof Object[]) {
+            return new ArrayList<Object>(Arrays.asList((Object[]) value));
+        } else if (value instanceof Map) {
+            // a script array, such as JavaScript's one, is a map of index and value
+            return new ArrayList<Object>(((Map<?, ?>) value).values());
         }
+        return value;
+    }
 
-        public String getScriptType() {
-            return scriptType;
-        }
+    private Object executeScript(final ScriptInfo scriptInfo, final Map<String, Object> vars) {
+        vars.put("logger", logger);
+        final ScriptService scriptService = SingletonLaContainer.getComponent(ScriptService.class);
+        return scriptService.execute(scriptInfo.getLang(), scriptInfo.getScript(), scriptInfo.getScriptType(), vars);
     }
 
-    protected void processCssQuery(final org.jsoup.nodes.Document document, final String propName, final Map<String, Object> params,
-            final boolean isTrimSpaces, final List<String> strList) {
-        for (final String queryType : queryTypes) {
-            final Object queryObj = SettingsUtils.get(params, queryType, null);
-            Element[] elements = null;
-            if (queryObj instanceof String) {
-                elements = getElements(new Element[] { document }, queryObj.toString());
-            } else if (queryObj instanceof List) {
-                @SuppressWarnings("unchecked")
-                final List<String> queryList = (List<String>) queryObj;
-                elements = getElements(new Element[] { document }, queryList, propName.startsWith(ARRAY_PROPERTY_PREFIX));
-            }
-            if (elements != null) {
-                for (final Element element : elements) {
-                    if (element == null) {
-                        strList.add(null);
-                    } else {
-                        final List<Object> argList = SettingsUtils.get(params, ARGS_QUERY_TYPE, Collections.emptyList());
-                        try {
-                            final Method queryMethod = getQueryMethod(element, queryType, argList);
-                            strList.add(trimSpaces(
-                                    (String) MethodUtil.invoke(queryMethod, element, argList.toArray(new Object[argList.size()])),
-                                    isTrimSpaces));
-                        } catch (final Exception e) {
-                            logger.warn("Could not invoke " + queryType + " on " + element, e);
-                            strList.add(null);
-                        }
-                    }
+    protected void processCssQuery(final SelectorTrie.Evaluation evaluation, final PropertyRule propertyRule, final List<String> strList) {
+        final int selectorNodeId = propertyRule.getSelectorNodeId();
+        if (selectorNodeId < 0) {
+            return;
+        }
+        final ElementQuery elementQuery = propertyRule.getElementQuery();
+        final boolean isTrimSpaces = propertyRule.isTrimSpaces();
+        final Element[] elements = evaluation.get(selectorNodeId);
+        for (final Element element : elements) {
+            if (element == null) {
+                strList.add(null);
+            } else {
+                try {
+                    strList.add(trimSpaces((String) elementQuery.query(element), isTrimSpaces));
+                } catch (final Exception e) {
+                    logger.warn("Could not invoke " + propertyRule.getQueryType() + " on " + element, e);
+                    strList.add(null);
                 }
-                break;
             }
         }
     }
 
-    protected Method getQueryMethod(final Element element, final String queryType, final List<Object> argList) {
-        final BeanDesc elementDesc = BeanDescFactory.getBeanDesc(element.getClass());
-        if (argList == null || argList.isEmpty()) {
-            return elementDesc.getMethodDesc(queryType).getMethod();
-        } else {
-            final Class<?>[] paramTypes = new Class[argList.size()];
-            for (int i = 0; i < paramTypes.length; i++) {
-                paramTypes[i] = String.class;
-            }
-            return elementDesc.getMethodDesc(queryType, paramTypes).getMethod();
+    protected Element[] getElements(final Element[] elements, final List<String> queries, final boolean isArrayProperty) {
+        final CompiledSelector[] selectors = new CompiledSelector[queries.size()];
+        for (int i = 0; i < selectors.length; i++) {
+            selectors[i] = SelectorCache.get(queries.get(i));
         }
+        return getElements(elements, selectors, isArrayProperty);
     }
 
-    protected Element[] getElements(final Element[] elements, final List<String> queries, final boolean isArrayProperty) {
+    protected Element[] getElements(final Element[] elements, final CompiledSelector[] selectors, final boolean isArrayProperty) {
         Element[] targets = elements;
-        for (final String query : queries) {
+        for (final CompiledSelector selector : selectors) {
             final List<Element> elementList = new ArrayList<Element>();
             for (final Element element : targets) {
                 if (element == null) {
                     elementList.add(null);
                 } else {
-                    final Element[] childElements = getElements(new Element[] { element }, query);
+                    final Element[] childElements = selector.select(new Element[] { element });
                     if (childElements.length == 0 && isArrayProperty) {
                         elementList.add(null);
                     } else {
@@ -463,61 +502,7 @@ public class ScrapingTransformer extends HtmlTransformer {
     }
 
     protected Element[] getElements(final Element[] elements, final String query) {
-        Element[] targets = elements;
-        final Pattern pattern = Pattern.compile(":eq\\(([0-9]+)\\)|:lt\\(([0-9]+)\\)|:gt\\(([0-9]+)\\)");
-        final Matcher matcher = pattern.matcher(query);
-        final StringBuffer buf = new StringBuffer();
-        while (matcher.find()) {
-            final String value = matcher.group();
-            matcher.appendReplacement(buf, "");
-            if (buf.charAt(buf.length() - 1) != ' ') {
-                try {
-                    final int index = Integer.parseInt(matcher.group(1));
-                    final List<Element> elementList = new ArrayList<Element>();
-                    final String childQuery = buf.toString();
-                    for (final Element element : targets) {
-                        final Elements childElements = element.select(childQuery);
-                        if (value.startsWith(":eq")) {
-                            if (index < childElements.size()) {
-                                elementList.add(childElements.get(index));
-                            }
-                        } else if (value.startsWith(":lt")) {
-                            for (int i = 0; i < childElements.size() && i < index; i++) {
-                                elementList.add(childElements.get(i));
-                            }
-                        } else if (value.startsWith(":gt")) {
-                            for (int i = index + 1; i < childElements.size(); i++) {
-                                elementList.add(childElements.get(i));
-                            }
-                        }
-                    }
-                    targets = elementList.toArray(new Element[elementList.size()]);
-                    buf.setLength(0);
-                } catch (final NumberFormatException e) {
-                    logger.warn("Invalid number: " + query, e);
-                    buf.append(value);
-                }
-            } else {
-                buf.append(value);
-            }
-        }
-        matcher.appendTail(buf);
-        final String lastQuery = buf.toString();
-        if (StringUtil.isNotBlank(lastQuery)) {
-            final List<Element> elementList = new ArrayList<Element>();
-            for (final Element element : targets) {
-                if (element == null) {
-                    elementList.add(null);
-                } else {
-                    final Elements childElements = element.select(lastQuery);
-                    for (int i = 0; i < childElements.size(); i++) {
-                        elementList.add(childElements.get(i));
-                    }
-                }
-            }
-            targets = elementList.toArray(new Element[elementList.size()]);
-        }
-        return targets;
+        return SelectorCache.get(query).select(elements);
     }
 
     protected String trimSpaces(final String value, final boolean trimSpaces) {
@@ -531,8 +516,11 @@ public class ScrapingTransformer extends HtmlTransformer {
     }
 
     protected void addPropertyData(final Map<String, Object> dataMap, final String key, final Object value) {
+        addPropertyData(dataMap, key.split("\\."), value);
+    }
+
+    protected void addPropertyData(final Map<String, Object> dataMap, final String[] keys, final Object value) {
         Map<String, Object> currentDataMap = dataMap;
-        final String[] keys = key.split("\\.");
         for (int i = 0; i < keys.length - 1; i++) {
             final String currentKey = keys[i];
             @SuppressWarnings("unchecked")
@@ -552,12 +540,14 @@ public class ScrapingTransformer extends HtmlTransformer {
         final String indexName = riverConfig.getIndex();
         final String typeName = riverConfig.getType();
         final boolean overwrite = riverConfig.isOverwrite();
+        final boolean urlBasedId = riverConfig.isUrlBasedId();
 
         if (logger.isDebugEnabled()) {
             logger.debug("Index: " + indexName + ", sessionId: " + sessionId + ", Data: " + dataMap);
         }
 
-        if (overwrite) {
+        // url-based ids overwrite old documents, and remaining ones are deleted after storing
+        if (overwrite && !urlBasedId) {
             final int count = esClient.deleteByQuery(indexName, typeName, QueryBuilders.termQuery("url", responseData.getUrl()));
             if (count > 0) {
                 esClient.admin().indices().prepareRefresh(indexName).execute().actionGet();
@@ -565,7 +555,7 @@ public class ScrapingTransformer extends HtmlTransformer {
         }
 
         @SuppressWarnings("unchecked")
-        final Map<String, Object> arrayDataMap = (Map<String, Object>) dataMap.remove(ARRAY_PROPERTY_PREFIX);
+        final Map<String, Object> arrayDataMap = (Map<String, Object>) dataMap.remove(PropertyRule.ARRAY_PROPERTY_PREFIX);
         if (arrayDataMap != null) {
             final Map<String, Object> flatArrayDataMap = new LinkedHashMap<String, Object>();
             convertFlatMap("", arrayDataMap, flatArrayDataMap);
@@ -580,10 +570,15 @@ public class ScrapingTransformer extends HtmlTransformer {
                     }
                 }
             }
+            // the base document is serialized once and each position is spliced into it
+            final byte[] baseSource = isSpliceable(dataMap, flatArrayDataMap) ? toSource(dataMap) : null;
+            final Date timestamp = new Date();
             for (int i = 0; i < maxSize; i++) {
                 final Map<String, Object> newDataMap = new LinkedHashMap<String, Object>();
                 newDataMap.put(POSITION_FIELD, i);
-                deepCopy(dataMap, newDataMap);
+                if (baseSource == null) {
+                    deepCopy(dataMap, newDataMap);
+                }
                 for (final Map.Entry<String, Object> entry : flatArrayDataMap.entrySet()) {
                     final Object value = entry.getValue();
                     if (value instanceof List) {
@@ -596,14 +591,118 @@ public class ScrapingTransformer extends HtmlTransformer {
                         addPropertyData(newDataMap, entry.getKey(), value);
                     }
                 }
-                storeIndex(indexName, typeName, newDataMap);
+                final String id = urlBasedId ? getDocumentId(responseData.getUrl(), i) : null;
+                if (baseSource != null) {
+                    newDataMap.put(TIMESTAMP_FIELD, timestamp);
+                    final byte[] source = toSource(newDataMap);
+                    if (source != null) {
+                        storeIndex(indexName, typeName, id, spliceSource(source, baseSource));
+                    }
+                } else {
+                    storeIndex(indexName, typeName, id, newDataMap);
+                }
+            }
+            if (overwrite && urlBasedId) {
+                deleteStaleDocuments(indexName, typeName, responseData.getUrl(), maxSize);
             }
         } else {
-            storeIndex(indexName, typeName, dataMap);
+            storeIndex(indexName, typeName, urlBasedId ? getDocumentId(responseData.getUrl(), -1) : null, dataMap);
+            if (overwrite && urlBasedId) {
+                deleteStaleDocuments(indexName, typeName, responseData.getUrl(), LastModifiedCache.NO_POSITION);
+            }
+        }
+    }
+
+    /**
+     * Deletes documents of the url which are not overwritten by url-based ids of this crawl.
+     * Ids of the previous crawl are taken from the snapshot of LastModifiedCache, so nothing
+     * is sent unless the number of positions decreases.
+     *
+     * @param positionCount the number of stored positions, or NO_POSITION
+     */
+    protected void deleteStaleDocuments(final String indexName, final String typeName, final String url, final int positionCount) {
+        final LastModifiedCache lastModifiedCache = riverConfigLocal.get().getLastModifiedCache();
+        final Integer oldCount = lastModifiedCache != null ? lastModifiedCache.getPositionCount(url) : null;
+        if (oldCount == null) {
+            // not in the snapshot
+            return;
+        }
+
+        if (oldCount.intValue() == LastModifiedCache.MIXED_IDS) {
+            // documents with generated ids, such as ones stored before "id_strategy" is set
+            final List<String> idList = new ArrayList<>();
+            if (positionCount == LastModifiedCache.NO_POSITION) {
+                idList.add(getDocumentId(url, -1));
+            } else {
+                for (int i = 0; i < positionCount; i++) {
+                    idList.add(getDocumentId(url, i));
+                }
+            }
+            final int count = esClient.deleteByQuery(indexName, typeName, QueryBuilders.boolQuery()
+                    .must(QueryBuilders.termQuery("url", url)).mustNot(QueryBuilders.idsQuery(typeName).ids(idList)));
+            if (logger.isDebugEnabled()) {
+                logger.debug("Deleted " + count + " stale documents of " + url);
+            }
+        } else if (oldCount.intValue() == LastModifiedCache.NO_POSITION) {
+            if (positionCount != LastModifiedCache.NO_POSITION) {
+                deleteIndex(indexName, typeName, getDocumentId(url, -1));
+            }
+        } else {
+            for (int i = Math.max(positionCount, 0); i < oldCount.intValue(); i++) {
+                deleteIndex(indexName, typeName, getDocumentId(url, i));
+            }
+        }
+    }
+
+    protected boolean isSpliceable(final Map<String, Object> dataMap, final Map<String, Object> flatArrayDataMap) {
+        if (dataMap.containsKey(POSITION_FIELD) || dataMap.containsKey(TIMESTAMP_FIELD)) {
+            return false;
+        }
+        for (final String key : flatArrayDataMap.keySet()) {
+            final int pos = key.indexOf('.');
+            if (dataMap.containsKey(pos == -1 ? key : key.substring(0, pos))) {
+                // nested properties need to be merged
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected byte[] toSource(final Map<String, Object> dataMap) {
+        try {
+            return jsonBuilder().value(dataMap).bytes().toBytes();
+        } catch (final IOException e) {
+            logger.warn("Could not serialize " + dataMap, e);
+            return null;
+        }
+    }
+
+    protected BytesReference spliceSource(final byte[] source, final byte[] baseSource) {
+        // {"position":0,...} + {"url":...} => {"position":0,...,"url":...}
+        final BytesStreamOutput out = new BytesStreamOutput(source.length + baseSource.length);
+        try {
+            out.writeBytes(source, 0, source.length - 1);
+            if (baseSource.length > 2) {
+                out.writeByte((byte) ',');
+                out.writeBytes(baseSource, 1, baseSource.length - 1);
+            } else {
+                out.writeByte((byte) '}');
+            }
+        } catch (final IOException e) {
+            throw new CrawlingAccessException("Could not create a source.", e);
         }
+        return out.bytes();
+    }
+
+    protected String getDocumentId(final String url, final int position) {
+        return FingerprintUtils.documentId(url, position);
     }
 
     protected void storeIndex(final String indexName, final String typeName, final Map<String, Object> dataMap) {
+        storeIndex(indexName, typeName, null, dataMap);
+    }
+
+    protected void storeIndex(final String indexName, final String typeName, final String id, final Map<String, Object> dataMap) {
         dataMap.put(TIMESTAMP_FIELD, new Date());
 
         if (logger.isDebugEnabled()) {
@@ -611,12 +710,44 @@ public class ScrapingTransformer extends HtmlTransformer {
         }
 
         try {
-            esClient.prepareIndex(indexName, typeName).setRefresh(true).setSource(jsonBuilder().value(dataMap)).execute().actionGet();
+            storeIndex(indexName, typeName, id, jsonBuilder().value(dataMap).bytes());
+        } catch (final IOException e) {
+            logger.warn("Could not write a content into index.", e);
+        }
+    }
+
+    protected void storeIndex(final String indexName, final String typeName, final String id, final BytesReference source) {
+        if (logger.isDebugEnabled()) {
+            logger.debug(indexName + "/" + typeName + " : source" + source.toUtf8());
+        }
+
+        try {
+            final RiverConfig riverConfig = riverConfigLocal.get();
+            final BulkIndexer bulkIndexer = riverConfig.getBulkIndexer();
+            if (bulkIndexer != null) {
+                bulkIndexer.add(esClient.prepareIndex(indexName, typeName, id).setSource(source).request());
+            } else {
+                esClient.prepareIndex(indexName, typeName, id).setRefresh(!riverConfig.isUrlBasedId()).setSource(source).execute()
+                        .actionGet();
+            }
         } catch (final Exception e) {
             logger.warn("Could not write a content into index.", e);
         }
     }
 
+    protected void deleteIndex(final String indexName, final String typeName, final String id) {
+        try {
+            final BulkIndexer bulkIndexer = riverConfigLocal.get().getBulkIndexer();
+            if (bulkIndexer != null) {
+                bulkIndexer.delete(esClient.prepareDelete(indexName, typeName, id).request());
+            } else {
+                esClient.prepareDelete(indexName, typeName, id).execute().actionGet();
+            }
+        } catch (final Exception e) {
+            logger.warn("Could not delete " + id + " from index.", e);
+        }
+    }
+
     protected void deepCopy(final Map<String, Object> oldMap, final Map<String, Object> newMap) {
         final Map<String, Object> flatMap = new LinkedHashMap<String, Object>();
         convertFlatMap("", oldMap, flatMap);
@@ -651,6 +782,39 @@ public class ScrapingTransformer extends HtmlTransformer {
         } else {
             super.storeChildUrls(responseData, resultData);
         }
+
+        final RiverConfig riverConfig = riverConfigLocal.get();
+        final ChildUrlFilter childUrlFilter = riverConfig != null ? riverConfig.getChildUrlFilter() : null;
+        if (childUrlFilter != null) {
+            filterChildUrls(childUrlFilter, responseData, resultData);
+        }
+    }
+
+    protected void filterChildUrls(final ChildUrlFilter childUrlFilter, final ResponseData responseData, final ResultData resultData) {
+        childUrlFilter.addSeen(responseData.getUrl());
+        final Set<RequestData> childUrlSet = resultData.getChildUrlSet();
+        if (childUrlSet == null || childUrlSet.isEmpty()) {
+            return;
+        }
+        final List<RequestData> requestDataList = new ArrayList<>(childUrlSet);
+        final List<RequestData> filteredList = new ArrayList<>(requestDataList.size());
+        final Set<String> urlSet = new HashSet<>();
+        for (final RequestData requestData : requestDataList) {
+            resultData.removeUrl(requestData);
+            final String url = childUrlFilter.filter(requestData.getUrl());
+            // urls are marked as seen when they are queued
+            if (url != null && urlSet.add(url)) {
+                filteredList.add(url.equals(requestData.getUrl()) ? requestData : RequestDataBuilder.newRequestData().get().url(url).build());
+            }
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Child urls of " + responseData.getUrl() + ": " + filteredList.size() + "/" + requestDataList.size());
+        }
+        resultData.addAllUrl(filteredList);
+    }
+
+    public void setContentBufferPool(final ContentBufferPool contentBufferPool) {
+        this.contentBufferPool = contentBufferPool;
     }
 
     /**
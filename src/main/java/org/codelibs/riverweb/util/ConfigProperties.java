@@ -65,4 +65,20 @@ public class ConfigProperties extends DynamicProperties {
         }
         return 20;
     }
+
+    public int getFetchSlots() {
+        String value = getProperty("fetch.slots");
+        if (StringUtil.isNotBlank(value)) {
+            return Integer.parseInt(value);
+        }
+        return 0;
+    }
+
+    public int getFetchHostSlots() {
+        String value = getProperty("fetch.host.slots");
+        if (StringUtil.isNotBlank(value)) {
+            return Integer.parseInt(value);
+        }
+        return 0;
+    }
 }
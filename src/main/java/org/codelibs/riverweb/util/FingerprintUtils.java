@@ -0,0 +1,46 @@
+package org.codelibs.riverweb.util;
+
+import java.nio.charset.StandardCharsets;
+
+import org.elasticsearch.common.hash.MurmurHash3;
+
+public final class FingerprintUtils {
+    private static final long SEED = 0;
+
+    private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
+    private FingerprintUtils() {
+    }
+
+    public static long fingerprint64(final String value) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return MurmurHash3.hash128(bytes, 0, bytes.length, SEED, new MurmurHash3.Hash128()).h1;
+    }
+
+    public static String fingerprint128(final String value) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        final MurmurHash3.Hash128 hash = MurmurHash3.hash128(bytes, 0, bytes.length, SEED, new MurmurHash3.Hash128());
+        final char[] chars = new char[32];
+        appendHex(chars, 0, hash.h1);
+        appendHex(chars, 16, hash.h2);
+        return new String(chars);
+    }
+
+    /**
+     * @param url url of a document
+     * @param position position of "[]" array properties, or -1
+     * @return document id generated from the url
+     */
+    public static String documentId(final String url, final int position) {
+        if (position < 0) {
+            return fingerprint128(url);
+        }
+        return fingerprint128(url + '\n' + position);
+    }
+
+    private static void appendHex(final char[] chars, final int offset, final long value) {
+        for (int i = 0; i < 16; i++) {
+            chars[offset + i] = HEX_CHARS[(int) (value >>> (60 - i * 4)) & 0xf];
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package org.codelibs.riverweb.util;
+
+import java.util.Map;
+
+import org.codelibs.fess.crawler.entity.ResponseData;
+
+public class HeaderUtils {
+
+    public static final String ETAG = "ETag";
+
+    private HeaderUtils() {
+    }
+
+    /**
+     * Returns a value of the response header, ignoring the case of its name.
+     *
+     * @param responseData response data
+     * @param name header name
+     * @return header value, or null if not found
+     */
+    public static String getHeader(final ResponseData responseData, final String name) {
+        final Map<String, Object> metaDataMap = responseData.getMetaDataMap();
+        if (metaDataMap == null) {
+            return null;
+        }
+        Object value = metaDataMap.get(name);
+        if (value == null) {
+            for (final Map.Entry<String, Object> entry : metaDataMap.entrySet()) {
+                if (name.equalsIgnoreCase(entry.getKey())) {
+                    value = entry.getValue();
+                    break;
+                }
+            }
+        }
+        return value != null ? value.toString() : null;
+    }
+}
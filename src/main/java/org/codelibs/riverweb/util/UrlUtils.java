@@ -0,0 +1,31 @@
+package org.codelibs.riverweb.util;
+
+import java.util.Locale;
+
+public final class UrlUtils {
+
+    private UrlUtils() {
+    }
+
+    /**
+     * Returns the lower-cased authority of the url, such as "example.com:8080".
+     *
+     * @param url url
+     * @return host of the url, or an empty string if the url is null
+     */
+    public static String getHost(final String url) {
+        if (url == null) {
+            return "";
+        }
+        final int schemePos = url.indexOf("://");
+        final int start = schemePos >= 0 ? schemePos + 3 : 0;
+        int end = url.length();
+        for (final char c : new char[] { '/', '?', '#' }) {
+            final int pos = url.indexOf(c, start);
+            if (pos >= 0 && pos < end) {
+                end = pos;
+            }
+        }
+        return url.substring(start, end).toLowerCase(Locale.ROOT);
+    }
+}
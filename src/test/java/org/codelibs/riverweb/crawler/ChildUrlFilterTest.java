@@ -0,0 +1,40 @@
+package org.codelibs.riverweb.crawler;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class ChildUrlFilterTest {
+    @Test
+    public void canonicalize() {
+        final ChildUrlFilter filter = new ChildUrlFilter(null, null, null);
+        assertThat(filter.canonicalize("HTTP://Example.COM:80"), is("http://example.com/"));
+        assertThat(filter.canonicalize("https://example.com:443/a/B.html#top"), is("https://example.com/a/B.html"));
+        assertThat(filter.canonicalize("http://example.com:8080/?utm_source=x&id=1&fbclid=y"), is("http://example.com:8080/?id=1"));
+        assertThat(filter.canonicalize("http://example.com/a?utm_medium=x"), is("http://example.com/a"));
+        assertThat(filter.canonicalize("mailto:user@example.com"), is("mailto:user@example.com"));
+    }
+
+    @Test
+    public void filter() {
+        final ChildUrlFilter filter = new ChildUrlFilter(Arrays.asList("http://example\\.com/.*"), Arrays.asList(".*\\.pdf"),
+                Collections.singletonMap("tracking_params", Arrays.asList("sid")));
+        assertThat(filter.filter("http://example.com/a.html?sid=1"), is("http://example.com/a.html"));
+        assertThat(filter.filter("http://example.com/a.html#b"), is("http://example.com/a.html"));
+        assertThat(filter.filter("http://EXAMPLE.com/a.html") == null, is(true));
+        assertThat(filter.filter("http://example.com/a.pdf") == null, is(true));
+        assertThat(filter.filter("http://example.com/a.pdf?sid=1"), is("http://example.com/a.pdf"));
+        assertThat(filter.filter("http://example.org/") == null, is(true));
+        assertThat(filter.filter("http://example.com/b.html?utm_source=x"), is("http://example.com/b.html?utm_source=x"));
+        assertThat(filter.getSeenSize(), is(0));
+
+        filter.addSeen("http://example.com/a.html");
+        assertThat(filter.filter("http://example.com/a.html#c") == null, is(true));
+        assertThat(filter.isSeen("http://example.com/a.html?sid=2"), is(true));
+        assertThat(filter.getSeenSize(), is(1));
+    }
+}
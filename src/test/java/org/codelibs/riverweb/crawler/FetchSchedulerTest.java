@@ -0,0 +1,108 @@
+package org.codelibs.riverweb.crawler;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.codelibs.fess.crawler.exception.CrawlingAccessException;
+import org.junit.Test;
+
+public class FetchSchedulerTest {
+    @Test
+    public void noLimit() {
+        final FetchScheduler scheduler = new FetchScheduler();
+        scheduler.register("s1", 0, 1);
+        assertThat(scheduler.acquire("s1", "http://example.com/") == FetchScheduler.NOOP_SLOT, is(true));
+        assertThat(scheduler.acquire("unknown", "http://example.com/") == FetchScheduler.NOOP_SLOT, is(true));
+    }
+
+    @Test
+    public void hostSlots() throws Exception {
+        final FetchScheduler scheduler = new FetchScheduler();
+        scheduler.setMaxHostSlots(1);
+        scheduler.register("s1", 0, 1);
+        scheduler.register("s2", 0, 1);
+
+        final FetchScheduler.Slot slot = scheduler.acquire("s1", "http://Example.com/a");
+        final CompletableFuture<FetchScheduler.Slot> waiting =
+                CompletableFuture.supplyAsync(() -> scheduler.acquire("s2", "http://example.com/b"));
+        try {
+            waiting.get(200, TimeUnit.MILLISECONDS);
+            assertThat("another session should wait for the host", false, is(true));
+        } catch (final TimeoutException e) {
+            // waiting for the host
+        }
+        scheduler.acquire("s2", "http://example.org/").release();
+        assertThat(scheduler.getRunning(), is(1));
+
+        slot.release();
+        waiting.get(1, TimeUnit.SECONDS).release();
+        assertThat(scheduler.getRunning(), is(0));
+    }
+
+    @Test
+    public void interruptGrantedWaiter() throws Exception {
+        final FetchScheduler scheduler = new FetchScheduler();
+        scheduler.setMaxHostSlots(1);
+        scheduler.register("s1", 0, 1);
+
+        final FetchScheduler.Slot slot = scheduler.acquire("s1", "http://example.com/a");
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        final Thread thread = new Thread(() -> {
+            try {
+                scheduler.acquire("s1", "http://example.com/b").release();
+            } catch (final Exception e) {
+                error.set(e);
+            }
+        });
+        thread.start();
+        while (thread.getState() != Thread.State.WAITING) {
+            Thread.sleep(10L);
+        }
+        synchronized (scheduler) {
+            // the waiter is granted after the interrupt, and wakes up by InterruptedException
+            thread.interrupt();
+            slot.release();
+        }
+        thread.join(1000L);
+
+        assertThat(error.get() instanceof CrawlingAccessException, is(true));
+        assertThat(scheduler.getRunning(), is(0));
+        scheduler.acquire("s1", "http://example.com/c").release();
+        assertThat(scheduler.getRunning(), is(0));
+    }
+
+    @Test
+    public void weightedSharing() {
+        final FetchScheduler scheduler = new FetchScheduler();
+        scheduler.setMaxSlots(1);
+        scheduler.register("s1", 0, 2);
+        scheduler.register("s2", 0, 1);
+        final FetchScheduler.Session s1 = scheduler.sessionMap.get("s1");
+        final FetchScheduler.Session s2 = scheduler.sessionMap.get("s2");
+        for (int i = 0; i < 6; i++) {
+            s1.waiters.add(new FetchScheduler.Waiter("a"));
+            s2.waiters.add(new FetchScheduler.Waiter("b"));
+        }
+
+        final StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < 9; i++) {
+            synchronized (scheduler) {
+                scheduler.dispatch();
+            }
+            assertThat(scheduler.getRunning(), is(1));
+            if (s1.running > 0) {
+                buf.append('1');
+                scheduler.release(s1, "a");
+            } else {
+                buf.append('2');
+                scheduler.release(s2, "b");
+            }
+        }
+        assertThat(buf.toString(), is("121121121"));
+    }
+}
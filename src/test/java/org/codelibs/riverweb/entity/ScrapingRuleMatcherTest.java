@@ -0,0 +1,54 @@
+package org.codelibs.riverweb.entity;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.codelibs.fess.crawler.entity.ResponseData;
+import org.junit.Test;
+
+public class ScrapingRuleMatcherTest {
+    @Test
+    public void getLiteralPrefix() {
+        assertThat(ScrapingRuleMatcher.getLiteralPrefix("http://fess\\.codelibs\\.org/.*"), is("http://fess.codelibs.org/"));
+        assertThat(ScrapingRuleMatcher.getLiteralPrefix("^https?://example.com/"), is("http"));
+        assertThat(ScrapingRuleMatcher.getLiteralPrefix("http://a+b"), is("http://a"));
+        assertThat(ScrapingRuleMatcher.getLiteralPrefix("http://a\\d+"), is("http://a"));
+        assertThat(ScrapingRuleMatcher.getLiteralPrefix("http://a.com/|http://b.com/"), is(""));
+        assertThat(ScrapingRuleMatcher.getLiteralPrefix("(?i)http://a.com/"), is(""));
+    }
+
+    @Test
+    public void match() {
+        final ScrapingRuleMatcher matcher = new ScrapingRuleMatcher();
+        final ScrapingRule rule1 = rule("url", "http://a\\.com/docs/.*");
+        final ScrapingRule rule2 = rule("url", ".*\\.html", "mimeType", "text/html");
+        final ScrapingRule rule3 = rule("url", "http://a\\.com/.*");
+        matcher.add(rule1);
+        matcher.add(rule2);
+        matcher.add(rule3);
+
+        assertThat(matcher.match(response("http://a.com/docs/1.html", "text/html")) == rule1, is(true));
+        assertThat(matcher.match(response("http://a.com/1.html", "text/html")) == rule2, is(true));
+        assertThat(matcher.match(response("http://a.com/1.html", "text/plain")) == rule3, is(true));
+        assertThat(matcher.match(response("http://b.com/1.txt", "text/plain")) == null, is(true));
+    }
+
+    private ScrapingRule rule(final String... patterns) {
+        final Map<String, Object> patternMap = new HashMap<>();
+        for (int i = 0; i < patterns.length; i += 2) {
+            patternMap.put(patterns[i], patterns[i + 1]);
+        }
+        return new ScrapingRule(null, patternMap, Collections.emptyMap());
+    }
+
+    private ResponseData response(final String url, final String mimeType) {
+        final ResponseData responseData = new ResponseData();
+        responseData.setUrl(url);
+        responseData.setMimeType(mimeType);
+        return responseData;
+    }
+}
@@ -0,0 +1,51 @@
+package org.codelibs.riverweb.interval;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.codelibs.fess.crawler.entity.ResponseData;
+import org.junit.Test;
+
+public class WebRiverIntervalControllerTest {
+    @Test
+    public void updateHostRate() {
+        final WebRiverIntervalController controller = new WebRiverIntervalController();
+        final Map<String, Object> settings = new HashMap<>();
+        settings.put("initial_rate", 2);
+        settings.put("max_rate", 3);
+        settings.put("increase", 1);
+        controller.setRateControlSettings(settings);
+
+        final ResponseData responseData = new ResponseData();
+        responseData.setHttpStatusCode(200);
+        controller.updateHostRate("http://Example.com/a", responseData, 10L);
+        assertThat(controller.getHostRates().get("example.com"), is(3d));
+        controller.updateHostRate("http://example.com/b", responseData, 10L);
+        assertThat(controller.getHostRates().get("example.com"), is(3d));
+        controller.updateHostRate("http://example.com/c", responseData, 5000L);
+        assertThat(controller.getHostRates().get("example.com"), is(1.5d));
+        controller.updateHostRate("http://example.org/", null, 10L);
+        assertThat(controller.getHostRates().get("example.org"), is(1d));
+    }
+
+    @Test
+    public void parseRetryAfter() {
+        final WebRiverIntervalController controller = new WebRiverIntervalController();
+        assertThat(controller.parseRetryAfter("5", 0L), is(5000L));
+        assertThat(controller.parseRetryAfter("invalid", 0L), is(0L));
+        assertThat(controller.parseRetryAfter(null, 0L), is(0L));
+        assertThat(controller.parseRetryAfter("Thu, 01 Jan 1970 00:00:30 GMT", 0L), is(30000L));
+        assertThat(controller.parseRetryAfter("86400", 0L), is(600000L));
+    }
+
+    @Test
+    public void disabled() {
+        final WebRiverIntervalController controller = new WebRiverIntervalController();
+        controller.updateHostRate("http://example.com/", null, 10L);
+        controller.delayForHost("http://example.com/");
+        assertThat(controller.getHostRates().isEmpty(), is(true));
+    }
+}
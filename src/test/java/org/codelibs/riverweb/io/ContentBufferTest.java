@@ -0,0 +1,71 @@
+package org.codelibs.riverweb.io;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class ContentBufferTest {
+    @Test
+    public void inMemory() throws Exception {
+        final ContentBufferPool pool = new ContentBufferPool();
+        pool.setInitialBufferSize(4);
+        pool.setMaxMemorySize(16);
+
+        final byte[] bytes = "0123456789".getBytes("UTF-8");
+        try (ContentBuffer contentBuffer = pool.load(new ByteArrayInputStream(bytes))) {
+            assertThat(contentBuffer.isInMemory(), is(true));
+            assertThat(contentBuffer.length(), is(10L));
+            assertThat(Arrays.equals(contentBuffer.getBytes(), bytes), is(true));
+            assertThat(contentBuffer.getString("UTF-8"), is("0123456789"));
+            try (InputStream is = contentBuffer.getInputStream()) {
+                assertThat(Arrays.equals(IOUtils.toByteArray(is), bytes), is(true));
+            }
+        }
+    }
+
+    @Test
+    public void spilled() throws Exception {
+        final ContentBufferPool pool = new ContentBufferPool();
+        pool.setInitialBufferSize(4);
+        pool.setMaxMemorySize(16);
+
+        final byte[] bytes = "0123456789abcdefghijklmnopqrstuvwxyz".getBytes("UTF-8");
+        try (ContentBuffer contentBuffer = pool.load(new ByteArrayInputStream(bytes))) {
+            assertThat(contentBuffer.isInMemory(), is(false));
+            assertThat(contentBuffer.length(), is(36L));
+            assertThat(Arrays.equals(contentBuffer.getBytes(), bytes), is(true));
+            assertThat(contentBuffer.getString("UTF-8"), is("0123456789abcdefghijklmnopqrstuvwxyz"));
+            for (int i = 0; i < 2; i++) {
+                try (InputStream is = contentBuffer.getInputStream()) {
+                    assertThat(Arrays.equals(IOUtils.toByteArray(is), bytes), is(true));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void digest() throws Exception {
+        final ContentBufferPool pool = new ContentBufferPool();
+        pool.setInitialBufferSize(4);
+        pool.setMaxMemorySize(16);
+
+        final byte[] bytes = "0123456789abcdefghijklmnopqrstuvwxyz".getBytes("UTF-8");
+        try (ContentBuffer contentBuffer = pool.load(new ByteArrayInputStream(bytes))) {
+            assertThat(contentBuffer.getDigest(), is("a26704c04fc5f10db5aab58468035531cc542485"));
+        }
+        try (ContentBuffer contentBuffer = pool.load(new ByteArrayInputStream("0123456789".getBytes("UTF-8")))) {
+            assertThat(contentBuffer.getDigest(), is("87acec17cd9dcd20a716cc2cf67417b71c8a7016"));
+        }
+
+        pool.setDigestAlgorithm(null);
+        try (ContentBuffer contentBuffer = pool.load(new ByteArrayInputStream(bytes))) {
+            assertThat(contentBuffer.getDigest() == null, is(true));
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.codelibs.riverweb.pipeline;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class StageTest {
+    @Test
+    public void submit() throws Exception {
+        final Map<String, Object> settings = new HashMap<>();
+        settings.put("threads", 1);
+        settings.put("queue_size", 2);
+        final Stage stage = new Stage("test", settings, 4, 100);
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicInteger count = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            stage.submit(() -> {
+                try {
+                    latch.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                count.incrementAndGet();
+            });
+        }
+        assertThat(stage.getMaxQueueDepth(), is(2));
+
+        // the 4th task waits until a task is finished
+        final Thread thread = new Thread(() -> stage.submit(() -> {
+            throw new IllegalStateException("test");
+        }));
+        thread.start();
+        thread.join(200L);
+        assertThat(thread.isAlive(), is(true));
+
+        latch.countDown();
+        thread.join();
+        stage.close();
+        assertThat(count.get(), is(3));
+        assertThat(stage.getCompletedCount(), is(3L));
+        assertThat(stage.getFailureCount(), is(1L));
+        assertThat(stage.getQueueDepth(), is(0));
+    }
+
+    @Test
+    public void closeTimeout() throws Exception {
+        final Map<String, Object> settings = new HashMap<>();
+        settings.put("threads", 1);
+        settings.put("close_timeout", 100L);
+        final Stage stage = new Stage("test", settings, 4, 100);
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        for (int i = 0; i < 2; i++) {
+            stage.submit(() -> {
+                try {
+                    latch.await();
+                } catch (final InterruptedException e) {
+                    throw new IllegalStateException("interrupted", e);
+                }
+            });
+        }
+        // the queued task is cancelled and the running one is interrupted
+        stage.close();
+        assertThat(stage.getCompletedCount(), is(0L));
+        assertThat(stage.getFailureCount(), is(2L));
+        assertThat(stage.getActiveCount(), is(0));
+    }
+}
@@ -0,0 +1,36 @@
+package org.codelibs.riverweb.selector;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import org.codelibs.core.io.ResourceUtil;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.junit.Test;
+
+public class CompiledSelectorTest {
+    @Test
+    public void select() throws Exception {
+        final Document document =
+                Jsoup.parse(ResourceUtil.getResourceAsFile("html/fess_codelibs_org.html"), "UTF-8", "http://fess.codelibs.org/");
+        final Element[] root = new Element[] { document };
+
+        assertThat(SelectorCache.get("div.sidebar-nav ul li").select(root).length, is(27));
+        assertThat(SelectorCache.get("div.section:eq(0) p").select(root).length, is(2));
+        assertThat(SelectorCache.get("div.section:eq(1) ul li").select(root).length, is(12));
+        assertThat(SelectorCache.get("div.section:eq(0) h2").select(root)[0].text(), is("What is Fess?"));
+        assertThat(SelectorCache.get("div.section:eq(1) h2").select(root)[0].text(), is("Features"));
+        // :lt and :gt are jsoup's sibling index selectors
+        assertThat(SelectorCache.get("div.section:lt(2) h2").select(root).length, is(0));
+        assertThat(SelectorCache.get("div.section:gt(0) h2:eq(0)").select(root).length, is(1));
+        assertThat(SelectorCache.get("div.section:eq(1) li:lt(2)").select(root).length, is(2));
+    }
+
+    @Test
+    public void select_null() {
+        final Element[] elements = SelectorCache.get("p").select(new Element[] { null });
+        assertThat(elements.length, is(1));
+        assertThat(elements[0] == null, is(true));
+    }
+}
@@ -0,0 +1,31 @@
+package org.codelibs.riverweb.selector;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.junit.Test;
+
+public class ElementQueriesTest {
+    @Test
+    public void query() {
+        final Document document = Jsoup.parse("<div id=\"x\" class=\"c\"><a href=\"/p\">a <b>b</b></a></div>", "http://example.com/");
+        final Element element = document.select("a").first();
+
+        assertThat(ElementQueries.get("text", new Object[0]).query(element), is("a b"));
+        assertThat(ElementQueries.get("ownText", new Object[0]).query(element), is("a"));
+        assertThat(ElementQueries.get("attr", new Object[] { "href" }).query(element), is("/p"));
+        assertThat(ElementQueries.get("absUrl", new Object[] { "href" }).query(element), is("http://example.com/p"));
+        assertThat(ElementQueries.get("className", new Object[0]).query(document.select("div").first()), is("c"));
+        // not in the dispatch table
+        assertThat(ElementQueries.get("hasAttr", new Object[] { "href" }).query(element), is(Boolean.TRUE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void query_unknown() {
+        final Document document = Jsoup.parse("<a href=\"/p\">a</a>");
+        ElementQueries.get("unknown", new Object[0]).query(document.select("a").first());
+    }
+}
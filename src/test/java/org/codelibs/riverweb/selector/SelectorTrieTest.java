@@ -0,0 +1,43 @@
+package org.codelibs.riverweb.selector;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.junit.Test;
+
+public class SelectorTrieTest {
+    @Test
+    public void evaluate() {
+        final Document document = Jsoup.parse("<div class=\"item\"><span class=\"title\">t1</span><a href=\"/1\">a1</a></div>"
+                + "<div class=\"item\"><a href=\"/2\">a2</a></div>");
+
+        final SelectorTrie trie = new SelectorTrie();
+        final int titleId = trie.add(selectors("div.item", "span.title"), true);
+        final int linkId = trie.add(selectors("div.item", "a"), true);
+        final int textId = trie.add(selectors("div.item", "a"), false);
+        assertThat(trie.size(), is(5));
+        assertThat(trie.add(selectors("div.item", "a"), true), is(linkId));
+
+        final SelectorTrie.Evaluation evaluation = trie.evaluate(document);
+        final Element[] titles = evaluation.get(titleId);
+        assertThat(titles.length, is(2));
+        assertThat(titles[0].text(), is("t1"));
+        assertThat(titles[1] == null, is(true));
+        final Element[] links = evaluation.get(linkId);
+        assertThat(links.length, is(2));
+        assertThat(links[1].text(), is("a2"));
+        assertThat(evaluation.get(textId).length, is(2));
+        assertThat(evaluation.get(linkId) == links, is(true));
+    }
+
+    private CompiledSelector[] selectors(final String... queries) {
+        final CompiledSelector[] selectors = new CompiledSelector[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            selectors[i] = SelectorCache.get(queries[i]);
+        }
+        return selectors;
+    }
+}